@@ -3,6 +3,7 @@ package io.github.mthli.knifedemo;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Parcelable;
 import android.text.TextUtils;
 import android.view.ActionMode;
 import android.view.Menu;
@@ -11,6 +12,7 @@ import android.view.View;
 import android.widget.EditText;
 
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.os.BundleCompat;
 
 import com.google.android.material.appbar.MaterialToolbar;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
@@ -27,6 +29,9 @@ public class MainActivity extends AppCompatActivity {
   private static final float ALPHA_SELECTED = 1f;
   private static final float ALPHA_DIM = 0.7f;
 
+  private static final String STATE_KNIFE = "knife";
+  private static final String STATE_SHOWING_HTML = "showing_html";
+
   /*
   Sample HTML for testing supported formats.
   */
@@ -79,7 +84,7 @@ public class MainActivity extends AppCompatActivity {
 
     setupToolbar();
     setupEditor();
-    setupKnife();
+    setupKnife(savedInstanceState);
     setupFormattingButtons();
     setupSelectionMenu();
     setupUndoRedoButtons();
@@ -91,25 +96,40 @@ public class MainActivity extends AppCompatActivity {
     setSupportActionBar(toolbar);
   }
 
-  // Initializes editor view
+  @Override
+  protected void onSaveInstanceState(Bundle outState) {
+    super.onSaveInstanceState(outState);
+    // In the HTML view the editor holds the source as plain text, saved like any document
+    outState.putParcelable(STATE_KNIFE, knife.onSaveInstanceState());
+    outState.putBoolean(STATE_SHOWING_HTML, showingHtml);
+  }
+
+  // Initializes editor view, Knife saves its own state
   private void setupEditor() {
     editor = findViewById(R.id.text);
+    editor.setSaveEnabled(false);
   }
 
   // Initializes Knife editor and selection listener
-  private void setupKnife() {
+  private void setupKnife(Bundle savedInstanceState) {
     knife = new Knife(editor);
-    knife.setHtml(INITIAL_HTML);
-
-    knife.setSelectionListener(
-        () -> {
-          updateFormatState(R.id.bold, knife.has(Knife.BOLD));
-          updateFormatState(R.id.italic, knife.has(Knife.ITALIC));
-          updateFormatState(R.id.underline, knife.has(Knife.UNDERLINE));
-          updateFormatState(R.id.strikethrough, knife.has(Knife.STRIKE));
-          updateFormatState(R.id.bullet, knife.has(Knife.BULLET));
-          updateFormatState(R.id.quote, knife.has(Knife.QUOTE));
-          updateFormatState(R.id.link, knife.has(Knife.URL));
+    if (savedInstanceState == null) {
+      knife.setHtml(INITIAL_HTML);
+    } else {
+      showingHtml = savedInstanceState.getBoolean(STATE_SHOWING_HTML);
+      knife.onRestoreInstanceState(
+          BundleCompat.getParcelable(savedInstanceState, STATE_KNIFE, Parcelable.class));
+    }
+
+    knife.setSelectionStateListener(
+        (start, end, formats) -> {
+          updateFormatState(R.id.bold, (formats & Knife.FORMAT_BOLD) != 0);
+          updateFormatState(R.id.italic, (formats & Knife.FORMAT_ITALIC) != 0);
+          updateFormatState(R.id.underline, (formats & Knife.FORMAT_UNDERLINE) != 0);
+          updateFormatState(R.id.strikethrough, (formats & Knife.FORMAT_STRIKE) != 0);
+          updateFormatState(R.id.bullet, (formats & Knife.FORMAT_BULLET) != 0);
+          updateFormatState(R.id.quote, (formats & Knife.FORMAT_QUOTE) != 0);
+          updateFormatState(R.id.link, (formats & Knife.FORMAT_URL) != 0);
         });
   }
 
@@ -0,0 +1,116 @@
+package io.github.mthli.knife.benchmark;
+
+import android.text.Editable;
+import android.text.SpannableString;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import io.github.mthli.knife.Knife;
+import io.github.mthli.knife.KnifeDocument;
+import io.github.mthli.knife.KnifeStyle;
+import io.github.mthli.knife.Span;
+
+/**
+ * The document operations behind the editor. {@link Knife#setHtml} is {@link #fromHtml} plus one
+ * copy of the text into the editor's Editable, and the paragraph fix-ups run by {@link #normalize}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(0) // Robolectric's android.text only exists in this JVM
+public class DocumentBenchmark {
+
+    // Text length in chars, 10 KB to 5 MB
+    @Param({"10240", "102400", "1048576", "5242880"})
+    public int size;
+
+    // Inline spans per 100 chars
+    @Param({"2", "10"})
+    public int density;
+
+    @Param({SyntheticDocument.PLAIN, SyntheticDocument.LISTS, SyntheticDocument.NESTED})
+    public String paragraphs;
+
+    private final KnifeStyle style = new KnifeStyle.Builder().build();
+    private String html;
+    private byte[] binary;
+    private KnifeDocument document;
+    private KnifeDocument readOnly;
+    private int paragraphStart;
+    private int paragraphEnd;
+    private boolean inserted;
+
+    @Setup
+    public void setUp() throws IOException {
+        html = SyntheticDocument.html(size, density, paragraphs);
+        document = KnifeDocument.fromHtml(html, style);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        document.writeTo(out);
+        binary = out.toByteArray();
+        // Not editable, so toHtml() serializes everything every time
+        readOnly = new KnifeDocument(new SpannableString(document.getText()), style);
+
+        Span<Integer> paragraph = document.getParagraph(document.getText().length() / 2);
+        paragraphStart = paragraph.start;
+        paragraphEnd = paragraph.end;
+        document.toHtml();
+    }
+
+    @Benchmark
+    public String toHtml() {
+        return readOnly.toHtml();
+    }
+
+    // A keystroke in the middle of the document, then the HTML, mostly from the cache
+    @Benchmark
+    public String editThenToHtml() {
+        Editable text = (Editable) document.getText();
+        if (inserted) {
+            text.delete(paragraphStart, paragraphStart + 1);
+        } else {
+            text.insert(paragraphStart, "x");
+        }
+        inserted = !inserted;
+        return document.toHtml();
+    }
+
+    @Benchmark
+    public KnifeDocument fromHtml() {
+        return KnifeDocument.fromHtml(html, style);
+    }
+
+    // The same document saved with writeTo(), compare with fromHtml
+    @Benchmark
+    public KnifeDocument readFrom() throws IOException {
+        return KnifeDocument.readFrom(new ByteArrayInputStream(binary), style);
+    }
+
+    // On and off on alternate calls
+    @Benchmark
+    public void toggle() {
+        document.toggle(Knife.BOLD, paragraphStart, paragraphEnd);
+    }
+
+    @Benchmark
+    public void normalize() {
+        document.normalize();
+    }
+
+}
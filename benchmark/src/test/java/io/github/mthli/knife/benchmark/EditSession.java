@@ -0,0 +1,162 @@
+package io.github.mthli.knife.benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Edits as an IME or a user would make them, replayed against an editor by the latency test.
+ *
+ * Recorded sessions are text, one edit per line, offsets clamped to the document:
+ * <pre>
+ * type 120 hello       types the text a char at a time, "\n" and "\\" escaped
+ * delete 125 3         backspaces from the offset
+ * enter 125
+ * paste 125 any text   inserts the text at once
+ * toggle bold 100 125  bold, italic, underline, strike, bullet or quote
+ * pause 1000           milliseconds without input, e.g. for the history timer
+ * </pre>
+ */
+final class EditSession {
+
+    enum Kind { TYPE, DELETE, ENTER, PASTE, TOGGLE, PAUSE }
+
+    static final class Edit {
+        final Kind kind;
+        final int offset;
+        final int count;
+        final String text;
+
+        Edit(Kind kind, int offset, int count, String text) {
+            this.kind = kind;
+            this.offset = offset;
+            this.count = count;
+            this.text = text;
+        }
+    }
+
+    final List<Edit> edits = new ArrayList<>();
+    // Edits other than pauses
+    int inputs;
+
+    private static final String[] FORMATS = {"bold", "italic", "underline", "strike", "bullet", "quote"};
+
+    /**
+     * Typing around {@code offset} at about 8 chars a second: words, typos fixed with backspace,
+     * new lines, the odd paste and format toggle, and pauses long enough for the history timer.
+     */
+    static EditSession synthetic(long seed, int count, int offset) {
+        Random random = new Random(seed);
+        EditSession session = new EditSession();
+        int cursor = offset;
+        while (session.inputs < count) {
+            int roll = random.nextInt(100);
+            if (roll < 70) {
+                String word = randomWord(random) + " ";
+                for (int i = 0; i < word.length(); i++) {
+                    session.add(Kind.TYPE, cursor++, 1, word.substring(i, i + 1));
+                    session.add(Kind.PAUSE, 0, 120, null);
+                }
+            } else if (roll < 82) {
+                int n = 1 + random.nextInt(Math.max(1, Math.min(6, cursor - offset)));
+                for (int i = 0; i < n && cursor > 0; i++) {
+                    session.add(Kind.DELETE, cursor--, 1, null);
+                    session.add(Kind.PAUSE, 0, 120, null);
+                }
+            } else if (roll < 88) {
+                session.add(Kind.ENTER, cursor++, 1, "\n");
+            } else if (roll < 91) {
+                String text = randomParagraph(random);
+                session.add(Kind.PASTE, cursor, text.length(), text);
+                cursor += text.length();
+            } else if (roll < 96) {
+                int start = Math.max(offset, cursor - 12);
+                session.add(Kind.TOGGLE, start, cursor - start, FORMATS[random.nextInt(FORMATS.length)]);
+            } else {
+                session.add(Kind.PAUSE, 0, 1000, null);
+            }
+        }
+        return session;
+    }
+
+    static EditSession parse(Reader in) throws IOException {
+        EditSession session = new EditSession();
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            String[] parts = line.split(" ", 3);
+            Kind kind = Kind.valueOf(parts[0].toUpperCase(Locale.ROOT));
+            switch (kind) {
+                case TYPE:
+                    String text = unescape(parts[2]);
+                    int offset = Integer.parseInt(parts[1]);
+                    for (int i = 0; i < text.length(); i++) {
+                        session.add(Kind.TYPE, offset + i, 1, text.substring(i, i + 1));
+                    }
+                    break;
+                case DELETE:
+                    session.add(kind, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), null);
+                    break;
+                case ENTER:
+                    session.add(kind, Integer.parseInt(parts[1]), 1, "\n");
+                    break;
+                case PASTE:
+                    String paste = unescape(parts[2]);
+                    session.add(kind, Integer.parseInt(parts[1]), paste.length(), paste);
+                    break;
+                case TOGGLE:
+                    String[] range = parts[2].split(" ");
+                    int start = Integer.parseInt(range[0]);
+                    session.add(kind, start, Integer.parseInt(range[1]) - start, parts[1]);
+                    break;
+                case PAUSE:
+                    session.add(kind, 0, Integer.parseInt(parts[1]), null);
+                    break;
+            }
+        }
+        return session;
+    }
+
+    private void add(Kind kind, int offset, int count, String text) {
+        edits.add(new Edit(kind, offset, count, text));
+        if (kind != Kind.PAUSE) inputs++;
+    }
+
+    private static String randomWord(Random random) {
+        StringBuilder word = new StringBuilder();
+        int length = 1 + random.nextInt(9);
+        for (int i = 0; i < length; i++) {
+            word.append((char) ('a' + random.nextInt(26)));
+        }
+        return word.toString();
+    }
+
+    private static String randomParagraph(Random random) {
+        StringBuilder text = new StringBuilder();
+        int words = 20 + random.nextInt(60);
+        for (int i = 0; i < words; i++) {
+            text.append(randomWord(random)).append(i % 25 == 24 ? "\n" : " ");
+        }
+        return text.toString();
+    }
+
+    private static String unescape(String text) {
+        StringBuilder out = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                c = text.charAt(++i) == 'n' ? '\n' : text.charAt(i);
+            }
+            out.append(c);
+        }
+        return out.toString();
+    }
+
+}
@@ -0,0 +1,210 @@
+package io.github.mthli.knife.benchmark;
+
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Looper;
+import android.text.Editable;
+import android.text.style.CharacterStyle;
+import android.text.style.ParagraphStyle;
+import android.widget.EditText;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import io.github.mthli.knife.Knife;
+
+/**
+ * Replays an {@link EditSession} against a {@link Knife} editor holding documents of growing size
+ * and times every edit, the text watchers and normalization included. Work the main looper runs
+ * during pauses, mostly history commits, is reported as "pause".
+ *
+ * Every run fails when the p95 of the edits grows with the document by more than the ratio in
+ * latency.properties, which holds on any machine. With -Pbenchmark the p95 and p99 are also held
+ * to the budgets in milliseconds from there. Any key can be overridden with a Gradle property
+ * prefixed with "latency.", and -Platency.session=file replays a recorded session instead of the
+ * synthetic one.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class KeystrokeLatencyTest {
+
+    private static final Map<String, Class<?>> FORMATS = Map.of(
+            "bold", Knife.BOLD,
+            "italic", Knife.ITALIC,
+            "underline", Knife.UNDERLINE,
+            "strike", Knife.STRIKE,
+            "bullet", Knife.BULLET,
+            "quote", Knife.QUOTE);
+
+    @Test
+    public void typingStaysWithinBudget() throws IOException {
+        // Milliseconds only mean something on a known machine
+        boolean budgets = Boolean.getBoolean("benchmark");
+        Properties config = loadConfig();
+        int edits = Integer.parseInt(config.getProperty("edits"));
+        String recorded = config.getProperty("session");
+
+        List<String> failures = new ArrayList<>();
+        String[] sizes = config.getProperty("sizes").split(",");
+        long firstP95 = 0;
+        long lastP95 = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            int size = Integer.parseInt(sizes[i].trim());
+
+            EditText editText = new EditText(RuntimeEnvironment.getApplication());
+            Knife knife = new Knife(editText);
+            knife.setHtml(SyntheticDocument.html(size, 2, SyntheticDocument.NESTED));
+            idle(Duration.ofSeconds(1));
+
+            int middle = knife.getDocument().getParagraph(editText.length() / 2).start;
+            EditSession session;
+            if (recorded != null) {
+                try (Reader in = new FileReader(recorded)) {
+                    session = EditSession.parse(in);
+                }
+            } else {
+                session = EditSession.synthetic(size, edits, middle);
+            }
+
+            Map<EditSession.Kind, List<Long>> times = new EnumMap<>(EditSession.Kind.class);
+            List<Long> inputs = new ArrayList<>();
+            for (EditSession.Edit edit : session.edits) {
+                long start = System.nanoTime();
+                apply(knife, editText, edit);
+                long time = System.nanoTime() - start;
+
+                times.computeIfAbsent(edit.kind, k -> new ArrayList<>()).add(time);
+                if (edit.kind != EditSession.Kind.PAUSE) inputs.add(time);
+            }
+
+            System.out.printf(Locale.ROOT, "%d chars, %d spans%n", editText.length(), spanCount(editText));
+            for (Map.Entry<EditSession.Kind, List<Long>> entry : times.entrySet()) {
+                System.out.printf(Locale.ROOT, "  %-6s %s%n",
+                        entry.getKey().name().toLowerCase(Locale.ROOT), summary(entry.getValue()));
+            }
+            System.out.printf(Locale.ROOT, "  %-6s %s%n", "all", summary(inputs));
+
+            long[] sorted = sort(inputs);
+            if (budgets) {
+                check(failures, config, "p95", size, percentile(sorted, 95));
+                check(failures, config, "p99", size, percentile(sorted, 99));
+            }
+            if (i == 0) firstP95 = percentile(sorted, 95);
+            lastP95 = percentile(sorted, 95);
+        }
+
+        double ratio = (double) lastP95 / Math.max(firstP95, 1);
+        String maxRatio = config.getProperty("p95.ratio");
+        System.out.printf(Locale.ROOT, "p95 at %s chars / p95 at %s chars: %.1f, at most %s%n",
+                sizes[sizes.length - 1].trim(), sizes[0].trim(), ratio, maxRatio);
+        if (ratio > Double.parseDouble(maxRatio)) {
+            failures.add(String.format(Locale.ROOT, "  p95 grows %.1f times from %s to %s chars, at most %s",
+                    ratio, sizes[0].trim(), sizes[sizes.length - 1].trim(), maxRatio));
+        }
+
+        if (!failures.isEmpty()) {
+            fail("Over the latency budget:\n" + String.join("\n", failures));
+        }
+    }
+
+    private static void apply(Knife knife, EditText editText, EditSession.Edit edit) {
+        Editable text = editText.getText();
+        int offset = Math.min(edit.offset, text.length());
+        switch (edit.kind) {
+            case TYPE:
+            case ENTER:
+            case PASTE:
+                text.insert(offset, edit.text);
+                editText.setSelection(offset + edit.text.length());
+                break;
+            case DELETE:
+                int start = Math.max(0, offset - edit.count);
+                text.delete(start, offset);
+                editText.setSelection(start);
+                break;
+            case TOGGLE:
+                Class<?> format = FORMATS.get(edit.text);
+                if (format == null) {
+                    throw new IllegalArgumentException("Unknown format " + edit.text);
+                }
+                knife.toggle(format, offset, Math.min(offset + edit.count, text.length()));
+                break;
+            case PAUSE:
+                idle(Duration.ofMillis(edit.count));
+                break;
+        }
+    }
+
+    private static void idle(Duration duration) {
+        shadowOf(Looper.getMainLooper()).idleFor(duration);
+    }
+
+    private static int spanCount(EditText editText) {
+        Editable text = editText.getText();
+        return text.getSpans(0, text.length(), CharacterStyle.class).length
+                + text.getSpans(0, text.length(), ParagraphStyle.class).length;
+    }
+
+    private static void check(List<String> failures, Properties config, String percentile,
+            int size, long time) {
+        String budget = config.getProperty(percentile + "." + size);
+        if (budget != null && time > Double.parseDouble(budget) * 1e6) {
+            failures.add(String.format(Locale.ROOT, "  %d chars: %s %.2f ms, budget %s ms",
+                    size, percentile, time / 1e6, budget));
+        }
+    }
+
+    private static String summary(List<Long> times) {
+        long[] sorted = sort(times);
+        return String.format(Locale.ROOT, "n %5d  p50 %7.3f ms  p95 %7.3f ms  p99 %7.3f ms  max %7.3f ms",
+                sorted.length, percentile(sorted, 50) / 1e6, percentile(sorted, 95) / 1e6,
+                percentile(sorted, 99) / 1e6, sorted.length > 0 ? sorted[sorted.length - 1] / 1e6 : 0);
+    }
+
+    private static long[] sort(List<Long> times) {
+        long[] sorted = new long[times.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = times.get(i);
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    // Nearest rank
+    private static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) return 0;
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static Properties loadConfig() throws IOException {
+        Properties config = new Properties();
+        try (InputStream in = KeystrokeLatencyTest.class.getResourceAsStream("/latency.properties")) {
+            config.load(in);
+        }
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith("latency.")) {
+                config.setProperty(key.substring("latency.".length()), System.getProperty(key));
+            }
+        }
+        return config;
+    }
+
+}
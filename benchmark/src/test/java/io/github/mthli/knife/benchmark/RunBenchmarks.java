@@ -0,0 +1,55 @@
+package io.github.mthli.knife.benchmark;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+
+/**
+ * Runs the JMH benchmarks inside Robolectric's sandbox, in this JVM, when Gradle is given
+ * -Pbenchmark. Options come from Gradle properties:
+ * <pre>
+ * -Pjmh.include=regex     benchmarks to run, all by default
+ * -Pjmh.params=size=10240;density=2,10
+ * -Pjmh.result=file.json  build/reports/jmh/results.json by default
+ * </pre>
+ * Compare the JSON of runs before and after a change, e.g. with a JMH results visualizer.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class RunBenchmarks {
+
+    @Test
+    public void run() throws RunnerException {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+        File result = new File(System.getProperty("jmh.result", "build/reports/jmh/results.json"));
+        result.getAbsoluteFile().getParentFile().mkdirs();
+
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(System.getProperty("jmh.include", DocumentBenchmark.class.getName()))
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result.getPath());
+
+        String params = System.getProperty("jmh.params", "");
+        for (String param : params.split(";")) {
+            int equals = param.indexOf('=');
+            if (equals > 0) {
+                options.param(param.substring(0, equals).trim(),
+                        param.substring(equals + 1).trim().split(","));
+            }
+        }
+        new Runner(options.build()).run();
+    }
+
+}
@@ -0,0 +1,125 @@
+package io.github.mthli.knife.benchmark;
+
+import java.util.Random;
+
+/**
+ * Made up documents in the HTML Knife writes, the same for the same arguments so runs before and
+ * after a change can be compared.
+ */
+final class SyntheticDocument {
+
+    static final String PLAIN = "plain";
+    static final String LISTS = "lists";
+    static final String NESTED = "nested";
+
+    private static final String[] WORDS = {
+            "knife", "rich", "text", "editor", "span", "paragraph", "bullet", "quote", "a", "of",
+            "the", "and", "to", "in", "is", "x<y", "R&D", "café", "naïve", "über", "日本語", "😀",
+    };
+    private static final String[][] TAGS = {
+            {"<b>", "</b>"}, {"<i>", "</i>"}, {"<u>", "</u>"}, {"<del>", "</del>"},
+    };
+
+    private static final int TEXT = 0;
+    private static final int BULLET = 1;
+    private static final int QUOTE = 2;
+    private static final int QUOTED_BULLET = 3;
+
+    private SyntheticDocument() {}
+
+    /**
+     * @param length  text length in chars, the HTML is longer
+     * @param density inline spans per 100 chars
+     * @param paragraphs {@link #PLAIN} text only, {@link #LISTS} with bullets and quotes, or
+     *                   {@link #NESTED} with bulleted lines inside quotes too
+     */
+    static String html(int length, int density, String paragraphs) {
+        Random random = new Random(length * 31L + density);
+        StringBuilder html = new StringBuilder(length * 2);
+        StringBuilder line = new StringBuilder();
+
+        int previous = TEXT;
+        int count = 0;
+        while (count < length) {
+            int kind = kind(random, paragraphs);
+            count += line(random, density, line) + 1;
+
+            if (previous == BULLET && kind != BULLET) {
+                html.append("</ul>");
+            }
+            switch (kind) {
+                case BULLET:
+                    if (previous != BULLET) html.append("<ul>");
+                    html.append("<li>").append(line).append("</li>");
+                    break;
+                case QUOTE:
+                    html.append("<blockquote>").append(line).append("</blockquote>");
+                    break;
+                case QUOTED_BULLET:
+                    html.append("<blockquote><ul><li>").append(line).append("</li></ul></blockquote>");
+                    break;
+                default:
+                    html.append(line).append("<br>");
+                    break;
+            }
+            previous = kind;
+            line.setLength(0);
+        }
+        if (previous == BULLET) {
+            html.append("</ul>");
+        }
+        return html.toString();
+    }
+
+    private static int kind(Random random, String paragraphs) {
+        int roll = random.nextInt(10);
+        switch (paragraphs) {
+            case LISTS:
+                return roll < 5 ? TEXT : roll < 8 ? BULLET : QUOTE;
+            case NESTED:
+                return roll < 4 ? TEXT : roll < 6 ? BULLET : roll < 8 ? QUOTE : QUOTED_BULLET;
+            default:
+                return TEXT;
+        }
+    }
+
+    // Appends a line of 4 to 16 words, returns its length in chars
+    private static int line(Random random, int density, StringBuilder out) {
+        int count = 0;
+        int words = 4 + random.nextInt(13);
+        for (int w = 0; w < words; w++) {
+            if (w > 0) {
+                out.append(' ');
+                count++;
+            }
+            String word = WORDS[random.nextInt(WORDS.length)];
+            count += word.length();
+
+            if (random.nextInt(100) >= density * (word.length() + 1)) {
+                escape(word, out);
+                continue;
+            }
+            int roll = random.nextInt(TAGS.length + 1);
+            String open = roll < TAGS.length ? TAGS[roll][0] : "<a href=\"https://example.com/" + w + "\">";
+            String close = roll < TAGS.length ? TAGS[roll][1] : "</a>";
+            out.append(open);
+            escape(word, out);
+            out.append(close);
+        }
+        return count;
+    }
+
+    private static void escape(String word, StringBuilder out) {
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (c == '<') {
+                out.append("&lt;");
+            } else if (c == '&') {
+                out.append("&amp;");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+}
@@ -2,30 +2,24 @@ package io.github.mthli.knife;
 
 import android.content.res.TypedArray;
 import android.graphics.Color;
+import android.os.Bundle;
 import android.os.Handler;
+import android.os.Parcelable;
+import android.os.Trace;
 import android.text.Editable;
-import android.text.ParcelableSpan;
 import android.text.Selection;
 import android.text.SpanWatcher;
 import android.text.Spannable;
 import android.text.SpannableString;
-import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.TextWatcher;
-import android.text.style.BulletSpan;
-import android.text.style.QuoteSpan;
-import android.text.style.StrikethroughSpan;
-import android.text.style.StyleSpan;
-import android.text.style.URLSpan;
 import android.text.style.UnderlineSpan;
 import android.util.Log;
 import android.util.TypedValue;
+import android.view.Choreographer;
 import android.widget.EditText;
 import android.widget.TextView;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import io.github.mthli.knife.spans.KnifeBoldSpan;
 import io.github.mthli.knife.spans.KnifeBulletSpan;
 import io.github.mthli.knife.spans.KnifeItalicSpan;
@@ -34,6 +28,14 @@ import io.github.mthli.knife.spans.KnifeStrikethroughSpan;
 import io.github.mthli.knife.spans.KnifeURLSpan;
 import io.github.mthli.knife.spans.KnifeUnderlineSpan;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
 @SuppressWarnings({"WeakerAccess", "unused"}) // Public API
 public class Knife {
 
@@ -45,82 +47,126 @@ public class Knife {
   public static final Class<?> QUOTE = KnifeQuoteSpan.class;
   public static final Class<?> URL = KnifeURLSpan.class;
 
+  // Format bits follow the order of TYPES
+  public static final int FORMAT_BOLD = 1;
+  public static final int FORMAT_ITALIC = 1 << 1;
+  public static final int FORMAT_UNDERLINE = 1 << 2;
+  public static final int FORMAT_STRIKE = 1 << 3;
+  public static final int FORMAT_BULLET = 1 << 4;
+  public static final int FORMAT_QUOTE = 1 << 5;
+  public static final int FORMAT_URL = 1 << 6;
+  public static final int FORMAT_ALL = (1 << 7) - 1;
+
+  // getHtml() option: write non-ASCII characters as they are instead of as &#NNNN; references.
+  // Only markup characters are escaped, much smaller for Arabic, CJK or emoji but the consumer must
+  // read the HTML as UTF-8 (or UTF-16).
+  public static final int TO_HTML_RAW_UNICODE = 1;
+
+  static final Class<?>[] TYPES = {BOLD, ITALIC, UNDERLINE, STRIKE, BULLET, QUOTE, URL};
+
+  // Insertions at least this long (pastes, setText) renormalize the whole document.
+  private static final int BULK_EDIT_LENGTH = 4096;
+
+  private static final String STATE_DOCUMENT = "knife:document";
+  private static final String STATE_HISTORY = "knife:history";
+  private static final String STATE_SELECTION_START = "knife:selectionStart";
+  private static final String STATE_SELECTION_END = "knife:selectionEnd";
+  // Saved state shares the Binder transaction limit with the rest of the Activity
+  private static final long STATE_HISTORY_BYTES = 128 * 1024;
+  private static final int STATE_DOCUMENT_BYTES = 256 * 1024;
+
   private final EditText editText; // Changed to EditText
 
   private OnSelectionChangedListener selectionListener;
+  private OnSelectionStateListener selectionStateListener;
+  private boolean selectionStatePending = false;
+  private final Choreographer.FrameCallback selectionStateCallback = this::dispatchSelectionState;
   private SpanWatcher spanWatcher;
 
-  private int bulletColor = Color.BLUE;
-  private int bulletRadius = 2;
-  private int bulletGap = 8;
-  private int linkColor = 0;
-  private boolean linkUnderline = true;
-  private int quoteColor = Color.BLUE;
-  private int quoteStripeWidth = 2;
-  private int quoteGap = 8;
+  private final KnifeStyle style;
+  private KnifeDocument document;
 
   private boolean historyEnable = true;
   private int historySize = 99;
-  private final List<HistoryEntry> historyList = new ArrayList<>();
-  private int historyCursor = 0;
+  private int historyMaxBytes = 4 * 1024 * 1024;
+  private final KnifeHistory history;
+  private KnifeAutosave autosave;
   private final Handler handler = new Handler();
   private final Runnable updateHistoryRunnable = this::addHistory;
 
-  private static class HistoryEntry {
-    final SpannableStringBuilder text;
-    final int start;
-    final int end;
+  private boolean normalizeAll = true;
+  private int dirtyStart = -1;
+  private int dirtyEnd = -1;
 
-    HistoryEntry(SpannableStringBuilder t, int s, int e) {
-      text = t;
-      start = s;
-      end = e;
-    }
-  }
+  // Nesting depth of beginBatch(), normalization, history and listeners wait while positive
+  private int batchDepth = 0;
+
+  // Bumped by every document load, so a slower async load can't overwrite a newer document
+  private int htmlGeneration = 0;
+  private boolean loading = false;
+  private Editable loadedText;
 
-  private String currentUrl;
+  private KnifeMetrics metrics;
 
   public Knife(EditText editText) {
     this.editText = editText;
 
-    bulletRadius = convertDpToPixels(bulletRadius);
-    bulletGap = convertDpToPixels(bulletGap);
-    quoteStripeWidth = convertDpToPixels(quoteStripeWidth);
-    quoteGap = convertDpToPixels(quoteGap);
-
     TypedArray arr = editText.getContext().obtainStyledAttributes(null, R.styleable.KnifeText);
 
-    bulletColor = arr.getColor(R.styleable.KnifeText_knife_bulletColor, bulletColor);
-    bulletRadius = arr.getDimensionPixelSize(R.styleable.KnifeText_knife_bulletRadius, bulletRadius);
-    bulletGap = arr.getDimensionPixelSize(R.styleable.KnifeText_knife_bulletGapWidth, bulletGap);
-    linkColor = arr.getColor(R.styleable.KnifeText_knife_linkColor, linkColor);
-    linkUnderline = arr.getBoolean(R.styleable.KnifeText_knife_linkUnderline, linkUnderline);
-    quoteColor = arr.getColor(R.styleable.KnifeText_knife_quoteColor, quoteColor);
-    quoteStripeWidth = arr.getDimensionPixelSize(R.styleable.KnifeText_knife_quoteStripeWidth, quoteStripeWidth);
-    quoteGap = arr.getDimensionPixelSize(R.styleable.KnifeText_knife_quoteGapWidth, quoteGap);
+    style =
+        new KnifeStyle.Builder()
+            .bulletColor(arr.getColor(R.styleable.KnifeText_knife_bulletColor, Color.BLUE))
+            .bulletRadius(arr.getDimensionPixelSize(R.styleable.KnifeText_knife_bulletRadius, convertDpToPixels(2)))
+            .bulletGap(arr.getDimensionPixelSize(R.styleable.KnifeText_knife_bulletGapWidth, convertDpToPixels(8)))
+            .linkColor(arr.getColor(R.styleable.KnifeText_knife_linkColor, 0))
+            .linkUnderline(arr.getBoolean(R.styleable.KnifeText_knife_linkUnderline, true))
+            .quoteColor(arr.getColor(R.styleable.KnifeText_knife_quoteColor, Color.BLUE))
+            .quoteStripeWidth(arr.getDimensionPixelSize(R.styleable.KnifeText_knife_quoteStripeWidth, convertDpToPixels(2)))
+            .quoteGap(arr.getDimensionPixelSize(R.styleable.KnifeText_knife_quoteGapWidth, convertDpToPixels(8)))
+            .build();
     historyEnable = arr.getBoolean(R.styleable.KnifeText_knife_historyEnable, historyEnable);
     historySize = arr.getInt(R.styleable.KnifeText_knife_historySize, historySize);
+    historyMaxBytes = arr.getInt(R.styleable.KnifeText_knife_historyMaxBytes, historyMaxBytes);
 
     arr.recycle();
 
+    history = new KnifeHistory(style, historySize, historyMaxBytes);
+
     editText.addTextChangedListener(
         new TextWatcher() {
           @Override
-          public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+          public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            if (loading) return;
+            if (isRecording() && s instanceof Spanned) {
+              history.beforeTextChanged((Spanned) s, start, count);
+            }
+          }
 
           @Override
-          public void onTextChanged(CharSequence s, int start, int before, int count) {}
+          public void onTextChanged(CharSequence s, int start, int before, int count) {
+            if (loading || history.isReplaying()) return;
+            if (isRecording() && s instanceof Spanned) {
+              history.onTextChanged((Spanned) s, start, count);
+            }
+
+            if (count >= BULK_EDIT_LENGTH) {
+              normalizeAll = true;
+            } else {
+              markDirty(start, before, count);
+            }
+          }
 
           @Override
           public void afterTextChanged(Editable text) {
-            ensureSpanWatcher();
-            clearNonKnifeStyles(text);
-            fixParagraphs(text, BULLET);
-            fixParagraphs(text, QUOTE);
-
-            if (historyEnable) {
-              handler.removeCallbacks(updateHistoryRunnable);
-              handler.postDelayed(updateHistoryRunnable, 800);
+            long started = beginSection(KnifeMetrics.AFTER_TEXT_CHANGED);
+            try {
+              ensureSpanWatcher();
+              if (loading || history.isReplaying() || batchDepth > 0) return;
+
+              normalizeDirty();
+              postHistory();
+            } finally {
+              endSection(KnifeMetrics.AFTER_TEXT_CHANGED, started);
             }
           }
         });
@@ -131,64 +177,236 @@ public class Knife {
           public void onSpanAdded(Spannable text, Object what, int start, int end) {
             if (what.getClass() == UnderlineSpan.class) {
               text.removeSpan(what);
+            } else if (isRecording()) {
+              history.onSpanAdded(text, what, start, end);
             }
           }
 
           @Override
-          public void onSpanRemoved(Spannable text, Object what, int start, int end) {}
+          public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+            if (isRecording()) {
+              history.onSpanRemoved(text, what, start, end);
+            }
+          }
 
           @Override
           public void onSpanChanged(
               Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
-            if (selectionListener != null && what == Selection.SELECTION_END) {
-              selectionListener.onSelectionChanged();
+            if (what == Selection.SELECTION_END) {
+              notifySelectionChanged();
             }
           }
         };
 
+    // Indexes Knife spans by type. Lets a document parsed by setHtml() or setHtmlAsync() in as is
+    // instead of copying it on the main thread.
+    editText.setEditableFactory(
+        new Editable.Factory() {
+          @Override
+          public Editable newEditable(CharSequence source) {
+            if (source == loadedText) {
+              return loadedText;
+            }
+            return new KnifeEditable(source);
+          }
+        });
+
     ensureSpanWatcher();
   }
 
+  /**
+   * Starts a batch of edits, e.g. a template applied in many {@link #set} calls. Until the
+   * matching {@link #endBatch()} paragraphs aren't normalized and listeners aren't called, then
+   * the whole batch is normalized once and becomes a single undo step. Batches nest.
+   */
+  public void beginBatch() {
+    if (batchDepth++ > 0) return;
+    handler.removeCallbacks(updateHistoryRunnable);
+    commitHistory(getText());
+    editText.beginBatchEdit();
+  }
+
+  public void endBatch() {
+    if (batchDepth == 0) {
+      throw new IllegalStateException("endBatch() without beginBatch()");
+    }
+    if (--batchDepth > 0) return;
+
+    editText.endBatchEdit();
+    Spannable text = getText();
+    normalizeDirty();
+    commitHistory(text);
+    notifySelectionChanged();
+  }
+
+  /** Runs {@code edits} between {@link #beginBatch()} and {@link #endBatch()}. */
+  public void batch(Runnable edits) {
+    beginBatch();
+    try {
+      edits.run();
+    } finally {
+      endBatch();
+    }
+  }
+
   public void undo() {
-    if (historyCursor <= 0) return;
-    historyCursor--;
-    HistoryEntry entry = historyList.get(historyCursor);
-    editText.setText(entry.text);
-    editText.setSelection(entry.start, entry.end);
+    if (batchDepth > 0) {
+      throw new IllegalStateException("Can't undo inside a batch");
+    }
+    if (!historyEnable) return;
+    long started = beginSection(KnifeMetrics.UNDO);
+    try {
+      Editable text = editText.getText();
+      handler.removeCallbacks(updateHistoryRunnable);
+      commitHistory(text);
+
+      KnifeHistory.Transaction transaction = history.undo(text);
+      if (transaction != null) {
+        if (autosave != null) autosave.append(text, transaction.pack(), false);
+        restoreSelection(transaction.selectionStart, transaction.selectionEnd);
+      }
+    } finally {
+      endSection(KnifeMetrics.UNDO, started);
+    }
   }
 
   public void redo() {
-    if (historyCursor >= historyList.size() - 1) return;
-    historyCursor++;
-    HistoryEntry entry = historyList.get(historyCursor);
-    editText.setText(entry.text);
-    editText.setSelection(entry.start, entry.end);
+    if (batchDepth > 0) {
+      throw new IllegalStateException("Can't redo inside a batch");
+    }
+    if (!historyEnable) return;
+    long started = beginSection(KnifeMetrics.REDO);
+    try {
+      Editable text = editText.getText();
+      handler.removeCallbacks(updateHistoryRunnable);
+      commitHistory(text);
+
+      KnifeHistory.Transaction transaction = history.redo(text);
+      if (transaction != null) {
+        if (autosave != null) autosave.append(text, transaction.pack(), true);
+        restoreSelection(transaction.redoSelectionStart, transaction.redoSelectionEnd);
+      }
+    } finally {
+      endSection(KnifeMetrics.REDO, started);
+    }
   }
 
-  private void addHistory() {
-    Editable current = editText.getText();
-    if (current == null) return;
+  /**
+   * Saves the document to {@code autosave} from now on, after loading what it saved last time if
+   * anything. Pass null to detach the current one once the pending edits are journaled, then close
+   * it with {@link KnifeAutosave#close()}.
+   *
+   * Loading runs on the calling thread: it reads the checkpoint, like {@link #readFrom}, and
+   * replays the journal on top of it. A checkpoint is written whenever the journal grows past
+   * twice the document or 64 KB, so the replay stays within about that many bytes of edits.
+   */
+  public void setAutosave(KnifeAutosave autosave) throws IOException {
+    // Pending edits go to the journal being detached. Without one they are left out, the
+    // checkpoint below has them already.
+    handler.removeCallbacks(updateHistoryRunnable);
+    commitHistory(getText());
+    this.autosave = null;
+    if (autosave == null) return;
+
+    Editable restored = autosave.restore(history, style);
+    if (restored != null) {
+      htmlGeneration++;
+      swapDocument(new KnifeDocument(restored, style));
+    }
+    this.autosave = autosave;
+    autosave.checkpoint(getText());
+  }
+
+  /**
+   * Saves the document in the binary format of {@link #writeTo}, the selection and the newest undo
+   * steps, for {@code Activity#onSaveInstanceState}. Call {@code setSaveEnabled(false)} on the
+   * EditText, otherwise it still parcels the text with every span on its own.
+   *
+   * The state goes through Binder, whose transactions are limited to about 1 MB for the whole
+   * process. Undo steps are kept under 128 KB, but the document is saved whole. With an autosave
+   * attached, a document over 256 KB is left out, together with its history, and comes back from
+   * the autosave instead; without one, keep large documents out of the saved state yourself.
+   */
+  public Parcelable onSaveInstanceState() {
+    Editable text = editText.getText();
+    handler.removeCallbacks(updateHistoryRunnable);
+    commitHistory(text);
+
+    ByteArrayOutputStream document = new ByteArrayOutputStream();
+    try {
+      writeTo(document);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
 
-    SpannableStringBuilder copy = new SpannableStringBuilder(current);
-    int start = editText.getSelectionStart();
-    int end = editText.getSelectionEnd();
+    Bundle state = new Bundle();
+    state.putInt(STATE_SELECTION_START, editText.getSelectionStart());
+    state.putInt(STATE_SELECTION_END, editText.getSelectionEnd());
+    if (autosave != null && document.size() > STATE_DOCUMENT_BYTES) {
+      // The journal is written from the same history, setAutosave() loads it all back
+      return state;
+    }
+    state.putByteArray(STATE_DOCUMENT, document.toByteArray());
+    if (historyEnable) {
+      state.putByteArray(STATE_HISTORY, history.saveState(STATE_HISTORY_BYTES));
+    }
+    return state;
+  }
+
+  /** Restores what {@link #onSaveInstanceState} saved, the spans come back without a reparse. */
+  public void onRestoreInstanceState(Parcelable state) {
+    if (!(state instanceof Bundle)) return;
+    Bundle bundle = (Bundle) state;
+    byte[] document = bundle.getByteArray(STATE_DOCUMENT);
+    if (document == null) return;
+
+    try {
+      readFrom(ByteBuffer.wrap(document));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+
+    byte[] undo = bundle.getByteArray(STATE_HISTORY);
+    if (undo != null) {
+      history.restoreState(undo);
+    }
+    restoreSelection(
+        bundle.getInt(STATE_SELECTION_START, 0), bundle.getInt(STATE_SELECTION_END, 0));
+  }
 
-    HistoryEntry entry = new HistoryEntry(copy, start, end);
+  // The history records edits for undo, and for the autosave journal even when undo is off
+  private boolean isRecording() {
+    return historyEnable || autosave != null;
+  }
 
-    // Remove future entries
-    while (historyList.size() > historyCursor) {
-      historyList.remove(historyList.size() - 1);
+  private void addHistory() {
+    long started = beginSection(KnifeMetrics.ADD_HISTORY);
+    try {
+      commitHistory(getText());
+    } finally {
+      endSection(KnifeMetrics.ADD_HISTORY, started);
     }
+  }
 
-    historyList.add(entry);
+  private void commitHistory(Spanned text) {
+    KnifeHistory.Transaction transaction = history.commit(text);
+    if (transaction != null && autosave != null) {
+      autosave.append(text, transaction.pack(), true);
+    }
+  }
 
-    // Limit history size
-    if (historyList.size() > historySize) {
-      historyList.remove(0);
-      historyCursor--;
+  private void postHistory() {
+    if (isRecording() && batchDepth == 0) {
+      handler.removeCallbacks(updateHistoryRunnable);
+      handler.postDelayed(updateHistoryRunnable, 800);
     }
+  }
 
-    historyCursor = historyList.size();
+  private void restoreSelection(int start, int end) {
+    int length = editText.getText().length();
+    start = Math.max(0, Math.min(start, length));
+    end = Math.max(0, Math.min(end, length));
+    editText.setSelection(start, end);
   }
 
   private int convertDpToPixels(int value) {
@@ -197,6 +415,36 @@ public class Knife {
             TypedValue.COMPLEX_UNIT_DIP, value, editText.getResources().getDisplayMetrics()));
   }
 
+  /**
+   * Reports the duration of every operation named in {@link KnifeMetrics} to {@code metrics}, null
+   * to stop. The operations are traced as sections either way.
+   */
+  public void setMetrics(KnifeMetrics metrics) {
+    this.metrics = metrics;
+    if (document != null) {
+      document.setMetrics(metrics);
+    }
+  }
+
+  private long beginSection(String section) {
+    Trace.beginSection(section);
+    return metrics != null ? System.nanoTime() : 0;
+  }
+
+  private void endSection(String section, long started) {
+    Trace.endSection();
+    // A document being loaded isn't the editor's document yet
+    if (metrics != null && !loading) {
+      Spannable text = getText();
+      metrics.onOperation(
+          section,
+          System.nanoTime() - started,
+          text.length(),
+          getDocument().getSpanCount(),
+          history.getRetainedBytes());
+    }
+  }
+
   private void ensureSpanWatcher() {
     Spannable text = getText();
     SpanWatcher[] watchers = text.getSpans(0, 0, SpanWatcher.class);
@@ -227,6 +475,20 @@ public class Knife {
     }
   }
 
+  /** The engine behind this editor, bound to the current text of the EditText. */
+  public KnifeDocument getDocument() {
+    Spannable text = getText();
+    if (document == null || document.getText() != text) {
+      document = new KnifeDocument(text, style);
+      document.setMetrics(metrics);
+    }
+    return document;
+  }
+
+  public KnifeStyle getStyle() {
+    return style;
+  }
+
   private Spannable getText() {
     CharSequence seq = editText.getText();
     if (seq instanceof Spannable) {
@@ -238,18 +500,163 @@ public class Knife {
   }
 
   public void setHtml(String html) {
-    if (html == null) {
-      editText.setText(null);
-      return;
+    long started = beginSection(KnifeMetrics.SET_HTML);
+    try {
+      htmlGeneration++;
+      normalizeAll = true;
+      if (html == null) {
+        editText.setText(null);
+        return;
+      }
+      Spannable parsed = KnifeParser.fromHtml(html, style, true);
+      loadedText = parsed instanceof Editable ? (Editable) parsed : null;
+      editText.setText(parsed);
+    } finally {
+      loadedText = null;
+      endSection(KnifeMetrics.SET_HTML, started);
+    }
+  }
+
+  /**
+   * Like {@link #setHtml}, but parses the HTML and builds the spans on {@code executor}. The main
+   * thread only swaps the finished text in, then calls {@code listener}, which may be null. The undo
+   * history starts over with the new document.
+   *
+   * If parsing throws, the document stays as it is and the exception goes to {@link
+   * OnHtmlLoadedListener#onHtmlLoadFailed} on the main thread. By default, and without a listener,
+   * it is rethrown there. Nothing is called for a load that a newer one replaced.
+   */
+  public void setHtmlAsync(String html, Executor executor, OnHtmlLoadedListener listener) {
+    loadAsync(
+        () -> html != null ? KnifeDocument.fromHtml(html, style, true) : null, executor, listener);
+  }
+
+  // setHtmlAsync() with any loader, e.g. one that fails in tests
+  void loadAsync(Callable<KnifeDocument> load, Executor executor, OnHtmlLoadedListener listener) {
+    int generation = ++htmlGeneration;
+    executor.execute(
+        () -> {
+          KnifeDocument loaded;
+          try {
+            loaded = load.call();
+          } catch (Exception e) {
+            RuntimeException failure =
+                e instanceof RuntimeException ? (RuntimeException) e : new IllegalStateException(e);
+            handler.post(
+                () -> {
+                  if (generation != htmlGeneration) return;
+                  if (listener != null) listener.onHtmlLoadFailed(failure);
+                  else throw failure;
+                });
+            return;
+          }
+          handler.post(
+              () -> {
+                if (generation != htmlGeneration) return;
+                swapDocument(loaded);
+                if (listener != null) listener.onHtmlLoaded();
+              });
+        });
+  }
+
+  private void swapDocument(KnifeDocument loaded) {
+    handler.removeCallbacks(updateHistoryRunnable);
+
+    loading = true;
+    try {
+      if (loaded == null) {
+        editText.setText(null);
+      } else {
+        Spannable text = loaded.getText();
+        loadedText = text instanceof Editable ? (Editable) text : null;
+        editText.setText(text);
+      }
+    } finally {
+      loading = false;
+      loadedText = null;
+    }
+
+    // The document comes normalized, from the worker or from the autosave
+    if (loaded != null && loaded.getText() == getText()) {
+      document = loaded;
+      document.setMetrics(metrics);
     }
-    SpannableStringBuilder builder = new SpannableStringBuilder();
-    builder.append(KnifeParser.fromHtml(html));
-    switchToKnifeStyle(builder);
-    editText.setText(builder);
+    normalizeAll = false;
+    dirtyStart = -1;
+    dirtyEnd = -1;
+    history.clear();
+    if (autosave != null) {
+      autosave.checkpoint(getText());
+    }
+  }
+
+  /**
+   * Writes the document in Knife's binary format, which loads without parsing HTML. Meant for drafts
+   * that stay on the device, read them back with {@link #readFrom}.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    getDocument().writeTo(out);
+  }
+
+  /** Replaces the document with one written by {@link #writeTo}, the undo history starts over. */
+  public void readFrom(InputStream in) throws IOException {
+    KnifeDocument loaded = KnifeDocument.readFrom(in, style);
+    htmlGeneration++;
+    swapDocument(loaded);
+  }
+
+  /** Same as {@link #readFrom(InputStream)}, e.g. from a memory-mapped file. */
+  public void readFrom(ByteBuffer buffer) throws IOException {
+    KnifeDocument loaded = KnifeDocument.readFrom(buffer, style);
+    htmlGeneration++;
+    swapDocument(loaded);
   }
 
   public String getHtml() {
-    return KnifeParser.toHtml(getText());
+    return getHtml(0);
+  }
+
+  /** @param option 0 or {@link #TO_HTML_RAW_UNICODE} */
+  public String getHtml(int option) {
+    long started = beginSection(KnifeMetrics.GET_HTML);
+    try {
+      return getDocument().toHtml(option);
+    } finally {
+      endSection(KnifeMetrics.GET_HTML, started);
+    }
+  }
+
+  /** HTML of {@code [start, end)} only, e.g. to copy the selection as rich text. */
+  public String getHtml(int start, int end) {
+    return getHtml(start, end, 0);
+  }
+
+  public String getHtml(int start, int end, int option) {
+    long started = beginSection(KnifeMetrics.GET_HTML);
+    try {
+      return getDocument().toHtml(start, end, option);
+    } finally {
+      endSection(KnifeMetrics.GET_HTML, started);
+    }
+  }
+
+  /** Streams the HTML into {@code out}, e.g. a buffered file Writer, without building a String. */
+  public void getHtml(Appendable out) throws IOException {
+    getHtml(out, 0);
+  }
+
+  public void getHtml(Appendable out, int option) throws IOException {
+    long started = beginSection(KnifeMetrics.GET_HTML);
+    try {
+      getDocument().toHtml(out, option);
+    } finally {
+      endSection(KnifeMetrics.GET_HTML, started);
+    }
+  }
+
+  /** A frozen copy of the text, e.g. to export it with {@link KnifeSnapshot#toHtml()} in the background. */
+  public KnifeSnapshot snapshot() {
+    return KnifeSnapshot.of(getText());
   }
 
   public void set(Class<?> spanClass) {
@@ -257,13 +664,9 @@ public class Knife {
   }
 
   public void set(Class<?> spanClass, int start, int end) {
-    Spannable text = getText();
-    if (isParagraphSpan(spanClass)) {
-      setParagraph(text, spanClass, start, end);
-    } else {
-      setSpan(text, spanClass, start, end);
-    }
-    if (selectionListener != null) selectionListener.onSelectionChanged();
+    getDocument().set(spanClass, start, end);
+    postHistory();
+    notifySelectionChanged();
   }
 
   public void remove(Class<?> spanClass) {
@@ -271,13 +674,9 @@ public class Knife {
   }
 
   public void remove(Class<?> spanClass, int start, int end) {
-    Spannable text = getText();
-    if (isParagraphSpan(spanClass)) {
-      removeParagraph(text, spanClass, start, end);
-    } else {
-      removeSpan(text, spanClass, start, end);
-    }
-    if (selectionListener != null) selectionListener.onSelectionChanged();
+    getDocument().remove(spanClass, start, end);
+    postHistory();
+    notifySelectionChanged();
   }
 
   public boolean has(Class<?> spanClass) {
@@ -285,11 +684,7 @@ public class Knife {
   }
 
   public boolean has(Class<?> spanClass, int start, int end) {
-    Spannable text = getText();
-    if (isParagraphSpan(spanClass)) {
-      return isFullOfParagraphs(text, spanClass, start, end);
-    }
-    return isFullySpanned(text, spanClass, start, end);
+    return getDocument().has(spanClass, start, end);
   }
 
   public void toggle(Class<?> spanClass) {
@@ -297,297 +692,163 @@ public class Knife {
   }
 
   public void toggle(Class<?> spanClass, int start, int end) {
-    Spannable text = getText();
-    if (isParagraphSpan(spanClass)) {
-      toggleParagraph(text, spanClass, start, end);
-    } else {
-      toggleSpan(text, spanClass, start, end);
-    }
-    if (selectionListener != null) selectionListener.onSelectionChanged();
+    getDocument().toggle(spanClass, start, end);
+    postHistory();
+    notifySelectionChanged();
   }
 
-  public void clearFormat() {
-    remove(BOLD);
-    remove(ITALIC);
-    remove(UNDERLINE);
-    remove(STRIKE);
-    remove(BULLET);
-    remove(QUOTE);
-    remove(URL);
+  public int getFormatState() {
+    return getFormatState(editText.getSelectionStart(), editText.getSelectionEnd());
   }
 
-  public void setLink(String url, int start, int end) {
-    currentUrl = url;
-    set(URL, start, end);
-    currentUrl = null;
+  /** The FORMAT_* bits of every format {@link #has} would report for the range. */
+  public int getFormatState(int start, int end) {
+    return getDocument().getFormatState(start, end);
   }
 
-  public Span<String> getLink(int start) {
-    Spannable text = getText();
-    URLSpan[] urls = text.getSpans(start, start, URLSpan.class);
-    if (urls.length == 0) return null;
-    URLSpan span = urls[0];
-    return new Span<>(span.getURL(), text.getSpanStart(span), text.getSpanEnd(span));
+  public void apply(int formats) {
+    apply(formats, editText.getSelectionStart(), editText.getSelectionEnd());
   }
 
-  public void setSelectionListener(OnSelectionChangedListener listener) {
-    selectionListener = listener;
+  /** Sets every format in {@code formats}, links excluded since they need a URL. */
+  public void apply(int formats, int start, int end) {
+    getDocument().apply(formats, start, end);
+    postHistory();
+    notifySelectionChanged();
   }
 
-  private void clearNonKnifeStyles(Spannable text) {
-    ParcelableSpan[] spans = text.getSpans(0, text.length(), ParcelableSpan.class);
-    for (ParcelableSpan span : spans) {
-      if (!span.getClass().getSimpleName().startsWith("Knife")) {
-        text.removeSpan(span);
-      }
-    }
+  public void clear(int formats) {
+    clear(formats, editText.getSelectionStart(), editText.getSelectionEnd());
   }
 
-  private void switchToKnifeStyle(Spannable text) {
-    Object[] spans = text.getSpans(0, text.length(), Object.class);
-    for (Object span : spans) {
-      if (span.getClass().getSimpleName().startsWith("Knife")) continue;
-
-      int s = text.getSpanStart(span);
-      int e = text.getSpanEnd(span);
-
-      if (span instanceof StyleSpan) {
-        int style = ((StyleSpan) span).getStyle();
-        text.removeSpan(span);
-        if (style == KnifeBoldSpan.STYLE) setSpan(text, BOLD, s, e);
-        else if (style == KnifeItalicSpan.STYLE) setSpan(text, ITALIC, s, e);
-      } else if (span instanceof UnderlineSpan) {
-        text.removeSpan(span);
-        setSpan(text, UNDERLINE, s, e);
-      } else if (span instanceof StrikethroughSpan) {
-        text.removeSpan(span);
-        setSpan(text, STRIKE, s, e);
-      } else if (span instanceof BulletSpan) {
-        text.removeSpan(span);
-        setParagraph(text, BULLET, s, e);
-      } else if (span instanceof QuoteSpan) {
-        text.removeSpan(span);
-        setParagraph(text, QUOTE, s, e);
-      } else if (span instanceof URLSpan) {
-        currentUrl = ((URLSpan) span).getURL();
-        text.removeSpan(span);
-        setSpan(text, URL, s, e);
-        currentUrl = null;
-      }
-    }
+  public void clear(int formats, int start, int end) {
+    getDocument().clear(formats, start, end);
+    postHistory();
+    notifySelectionChanged();
   }
 
-  private Object createSpan(Class<?> spanClass) {
-    if (spanClass == BOLD) return new KnifeBoldSpan();
-    if (spanClass == ITALIC) return new KnifeItalicSpan();
-    if (spanClass == UNDERLINE) return new KnifeUnderlineSpan();
-    if (spanClass == STRIKE) return new KnifeStrikethroughSpan();
-    if (spanClass == BULLET) return new KnifeBulletSpan(bulletColor, bulletRadius, bulletGap);
-    if (spanClass == QUOTE) return new KnifeQuoteSpan(quoteColor, quoteStripeWidth, quoteGap);
-    if (spanClass == URL) {
-      if (currentUrl == null || currentUrl.isEmpty()) {
-        throw new IllegalArgumentException("Use setLink() method to add links");
-      }
-      return new KnifeURLSpan(currentUrl, linkColor, linkUnderline);
-    }
-    throw new IllegalArgumentException("Unknown span type: " + spanClass.getSimpleName());
+  public void clearFormat() {
+    clear(FORMAT_ALL);
   }
 
-  private boolean isParagraphSpan(Class<?> spanClass) {
-    return spanClass == BULLET || spanClass == QUOTE;
+  public void setLink(String url, int start, int end) {
+    getDocument().setLink(url, start, end);
+    postHistory();
+    notifySelectionChanged();
   }
 
-  private boolean isSplittableSpan(Class<?> spanClass) {
-    return spanClass != URL;
+  public int getParagraphCount() {
+    return getDocument().getParagraphCount();
   }
 
-  private void setSpan(Spannable text, Class<?> spanClass, int start, int end) {
-    if (start == end) {
-      Object[] spans = text.getSpans(start, end, spanClass);
-      for (Object span : spans) {
-        if (text.getSpanEnd(span) == end) {
-          setSpanFlag(text, span, Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
-        }
-      }
-      return;
-    }
-
-    removeSpan(text, spanClass, start, end);
-
-    if (isSplittableSpan(spanClass)) {
-      Object[] before = text.getSpans(start, start, spanClass);
-      for (Object span : before) {
-        start = Math.min(start, text.getSpanStart(span));
-        text.removeSpan(span);
-      }
+  /** The paragraph containing {@code offset}, with its index as data. */
+  public Span<Integer> getParagraph(int offset) {
+    return getDocument().getParagraph(offset);
+  }
 
-      Object[] after = text.getSpans(end, end, spanClass);
-      for (Object span : after) {
-        end = Math.max(end, text.getSpanEnd(span));
-        text.removeSpan(span);
-      }
-    }
+  public Span<String> getLink(int start) {
+    return getDocument().getLink(start);
+  }
 
-    text.setSpan(createSpan(spanClass), start, end, Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+  public void setSelectionListener(OnSelectionChangedListener listener) {
+    selectionListener = listener;
   }
 
-  private void removeSpan(Spannable text, Class<?> spanClass, int start, int end) {
-    if (start == end) {
-      Object[] spans = text.getSpans(start, end, spanClass);
-      for (Object span : spans) {
-        if (text.getSpanEnd(span) == end) {
-          setSpanFlag(text, span, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-        }
-      }
-      return;
+  /**
+   * Like {@link #setSelectionListener}, but called at most once per frame with the final selection
+   * and its {@link #getFormatState} instead of on every selection or format change.
+   */
+  public void setSelectionStateListener(OnSelectionStateListener listener) {
+    selectionStateListener = listener;
+    if (listener == null && selectionStatePending) {
+      Choreographer.getInstance().removeFrameCallback(selectionStateCallback);
+      selectionStatePending = false;
     }
+  }
 
-    Object[] spans = text.getSpans(start, end, spanClass);
-    for (Object span : spans) {
-      int s = text.getSpanStart(span);
-      int e = text.getSpanEnd(span);
-      text.removeSpan(span);
-
-      if (isSplittableSpan(spanClass)) {
-        if (s < start) setSpan(text, spanClass, s, start);
-        if (end < e) setSpan(text, spanClass, end, e);
-      }
+  private void notifySelectionChanged() {
+    if (batchDepth > 0) return;
+    if (selectionListener != null) selectionListener.onSelectionChanged();
+    if (selectionStateListener != null && !selectionStatePending) {
+      selectionStatePending = true;
+      Choreographer.getInstance().postFrameCallback(selectionStateCallback);
     }
   }
 
-  private boolean isFullySpanned(Spannable text, Class<?> spanClass, int start, int end) {
-    Object[] spans = text.getSpans(start, end, spanClass);
+  private void dispatchSelectionState(long frameTimeNanos) {
+    if (!selectionStatePending) return;
+    selectionStatePending = false;
+    if (selectionStateListener == null) return;
 
-    if (start == end) {
-      for (Object span : spans) {
-        int s = text.getSpanStart(span);
-        int e = text.getSpanEnd(span);
-        int flag = text.getSpanFlags(span);
-        if ((start > s && end < e) || (end == e && flag == Spanned.SPAN_EXCLUSIVE_INCLUSIVE)) {
-          return true;
-        }
-      }
-      return false;
-    }
+    int start = editText.getSelectionStart();
+    int end = editText.getSelectionEnd();
+    selectionStateListener.onSelectionStateChanged(start, end, getFormatState(start, end));
+  }
 
-    for (int pos = start; pos < end; pos++) {
-      boolean found = false;
-      for (Object span : spans) {
-        if (pos >= text.getSpanStart(span) && pos < text.getSpanEnd(span)) {
-          found = true;
-          break;
-        }
-      }
-      if (!found) return false;
+  private void markDirty(int start, int before, int count) {
+    if (dirtyStart < 0) {
+      dirtyStart = start;
+      dirtyEnd = start + count;
+      return;
     }
-    return true;
-  }
 
-  private void toggleSpan(Spannable text, Class<?> spanClass, int start, int end) {
-    if (isFullySpanned(text, spanClass, start, end)) {
-      removeSpan(text, spanClass, start, end);
+    // Another edit landed before the pending range was normalized, shift and widen it.
+    if (dirtyEnd >= start) {
+      dirtyEnd = Math.max(dirtyEnd + count - before, start + count);
     } else {
-      setSpan(text, spanClass, start, end);
+      dirtyEnd = start + count;
     }
+    dirtyStart = Math.min(dirtyStart, start);
   }
 
-  private static void setSpanFlag(Spannable text, Object span, int flag) {
-    int s = text.getSpanStart(span);
-    int e = text.getSpanEnd(span);
-    text.removeSpan(span);
-    text.setSpan(span, s, e, flag);
-  }
-
-  private void setParagraph(Spannable text, Class<?> spanClass, int start, int end) {
-    start = findLineStart(text, start);
-    end = findLineEnd(text, end);
-
-    int lineStart = start;
-    while (lineStart < end) {
-      int lineEnd = findLineEnd(text, lineStart);
-      if (lineStart != lineEnd && !containsSpan(text, spanClass, lineStart, lineEnd)) {
-        text.setSpan(createSpan(spanClass), lineStart, lineEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-      }
-      lineStart = lineEnd + 1;
+  private void normalizeDirty() {
+    if (normalizeAll) {
+      getDocument().normalize();
+    } else if (dirtyStart >= 0) {
+      getDocument().normalize(dirtyStart, dirtyEnd);
     }
+    normalizeAll = false;
+    dirtyStart = -1;
+    dirtyEnd = -1;
   }
 
-  private void removeParagraph(Spannable text, Class<?> spanClass, int start, int end) {
-    start = findLineStart(text, start);
-    end = findLineEnd(text, end);
-
-    Object[] spans = text.getSpans(start, end, spanClass);
-    for (Object span : spans) {
-      text.removeSpan(span);
-    }
+  static int formatOf(Class<?> spanClass) {
+    return 1 << typeIndex(spanClass);
   }
 
-  private boolean isFullOfParagraphs(Spannable text, Class<?> spanClass, int start, int end) {
-    start = findLineStart(text, start);
-    end = findLineEnd(text, end);
-    if (start == end) return false;
-
-    int lineStart = start;
-    while (lineStart <= end) {
-      int lineEnd = findLineEnd(text, lineStart);
-      if (!containsSpan(text, spanClass, lineStart, lineEnd)) return false;
-      lineStart = lineEnd + 1;
+  static Class<?> typeOf(Object span) {
+    for (Class<?> type : TYPES) {
+      if (type.isInstance(span)) return type;
     }
-    return true;
+    return null;
   }
 
-  private void toggleParagraph(Spannable text, Class<?> spanClass, int start, int end) {
-    if (isFullOfParagraphs(text, spanClass, start, end)) {
-      removeParagraph(text, spanClass, start, end);
-    } else {
-      setParagraph(text, spanClass, start, end);
+  static int typeIndex(Class<?> spanClass) {
+    for (int i = 0; i < TYPES.length; i++) {
+      if (TYPES[i] == spanClass) return i;
     }
+    return -1;
   }
 
-  private void fixParagraphs(Spannable text, Class<?> spanClass) {
-    Object[] spans = text.getSpans(0, text.length(), spanClass);
-    for (Object span : spans) {
-      int s = text.getSpanStart(span);
-      int e = text.getSpanEnd(span);
-      int lineStart = findLineStart(text, s);
-      int lineEnd = findLineEnd(text, e);
-
-      if (s == lineStart && e == lineEnd) continue;
-
-      text.removeSpan(span);
-
-      int pos = lineStart;
-      while (pos < lineEnd) {
-        int next = findLineEnd(text, pos);
-        if (pos != next && !containsSpan(text, spanClass, pos, next)) {
-          text.setSpan(createSpan(spanClass), pos, next, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-        }
-        pos = next + 1;
-      }
-    }
+  static int defaultFlags(Class<?> spanClass) {
+    return spanClass == BULLET || spanClass == QUOTE
+        ? Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
+        : Spanned.SPAN_EXCLUSIVE_INCLUSIVE;
   }
 
-  private static int findLineStart(CharSequence text, int pos) {
-    if (pos <= 0) return 0;
-    for (int i = pos - 1; i >= 0; i--) {
-      if (text.charAt(i) == '\n') return i + 1;
-    }
-    return 0;
+  public interface OnSelectionChangedListener {
+    void onSelectionChanged();
   }
 
-  private static int findLineEnd(CharSequence text, int pos) {
-    if (pos >= text.length()) return text.length();
-    for (int i = pos; i < text.length(); i++) {
-      if (text.charAt(i) == '\n') return i;
-    }
-    return text.length();
-  }
+  public interface OnHtmlLoadedListener {
+    void onHtmlLoaded();
 
-  private static boolean containsSpan(Spanned text, Class<?> spanClass, int start, int end) {
-    return text.getSpans(start, end, spanClass).length > 0;
+    default void onHtmlLoadFailed(RuntimeException e) {
+      throw e;
+    }
   }
 
-  public interface OnSelectionChangedListener {
-    void onSelectionChanged();
+  public interface OnSelectionStateListener {
+    void onSelectionStateChanged(int start, int end, int formats);
   }
 }
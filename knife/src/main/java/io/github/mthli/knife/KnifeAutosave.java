@@ -0,0 +1,284 @@
+package io.github.mthli.knife;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Local autosave for a {@link Knife} editor, attached with {@link Knife#setAutosave}.
+ *
+ * Every committed edit, undo and redo is appended to a journal file as the reversible operations
+ * of the undo history, so a save costs about as much as the edit. Once the journal outgrows the
+ * document a full checkpoint is written and the journal starts over. Recovery loads the checkpoint
+ * and replays the journal on top of it.
+ *
+ * Files are written on a background thread. Appends are synced to disk in batches, one fsync each
+ * time the writer runs out of queued work. A torn record at the end of the journal, left by a
+ * crash, is detected by its checksum and dropped. If writing fails, saving stops and the error
+ * goes to the {@link OnFailureListener}.
+ */
+public final class KnifeAutosave {
+
+    private static final int CHECKPOINT_MAGIC = 0x4b4e4643; // "KNFC"
+    private static final int CHECKPOINT_VERSION = 1;
+    private static final long MIN_CHECKPOINT_BYTES = 64 * 1024;
+
+    private final File checkpointFile;
+    private final File journalFile;
+    private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService writer =
+            new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, queue);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile OnFailureListener failureListener;
+
+    // Main thread
+    private long sequence = 0;
+    private long journalBytes = 0;
+
+    // Writer thread
+    private FileOutputStream journalOut;
+    private DataOutputStream journal;
+    private volatile IOException failure;
+
+    public KnifeAutosave(File directory) {
+        checkpointFile = new File(directory, "knife.checkpoint");
+        journalFile = new File(directory, "knife.journal");
+    }
+
+    /**
+     * Called on the main thread with the first error of the writer. Nothing is saved after it, so
+     * e.g. tell the user and save the document some other way. Also called when recovery finds a
+     * journal record it can't replay, recovery stops at the record before and saving goes on.
+     */
+    public void setOnFailureListener(OnFailureListener listener) {
+        failureListener = listener;
+    }
+
+    /**
+     * Writes the remaining journal entries to disk and closes the files, blocking until done.
+     * Call {@link Knife#setAutosave} with null first, so the last edits reach the journal. Throws
+     * the first error of the writer, the one the listener got as well. Edits after it aren't saved.
+     */
+    public void close() throws IOException {
+        if (writer.isShutdown()) {
+            awaitWriter();
+            return;
+        }
+        writer.execute(() -> {
+            try {
+                if (journal != null) {
+                    sync();
+                    journal.close();
+                }
+            } catch (IOException e) {
+                fail(e);
+            } finally {
+                journal = null;
+                journalOut = null;
+            }
+        });
+        writer.shutdown();
+        awaitWriter();
+    }
+
+    private void awaitWriter() throws IOException {
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Checkpoint plus journal replayed on top of it, or null if nothing has been saved yet
+    Editable restore(KnifeHistory history, KnifeStyle style) throws IOException {
+        if (!checkpointFile.exists()) return null;
+        try {
+            return load(history, style, Long.MAX_VALUE);
+        } catch (RuntimeException e) {
+            // A record that passed its checksum and still doesn't apply may be half replayed, so
+            // load again up to the last one that did
+            long last = sequence;
+            report(new IOException("Can't replay the Knife journal after record " + last, e));
+            return load(history, style, last);
+        }
+    }
+
+    private Editable load(KnifeHistory history, KnifeStyle style, long last) throws IOException {
+        SpannableStringBuilder text;
+        long checkpointSequence;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(checkpointFile)))) {
+            if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != CHECKPOINT_VERSION) {
+                throw new IOException("Not a Knife checkpoint: " + checkpointFile);
+            }
+            checkpointSequence = in.readLong();
+            text = KnifeBinary.read(in, style);
+        }
+        sequence = checkpointSequence;
+
+        if (journalFile.exists()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(journalFile)))) {
+                byte[] record;
+                while ((record = readRecord(in, journalFile.length())) != null) {
+                    DataInputStream entry = new DataInputStream(new ByteArrayInputStream(record));
+                    long seq = entry.readLong();
+                    boolean forward = entry.readBoolean();
+                    if (seq <= sequence) continue;
+                    if (seq > last) break;
+
+                    byte[] ops = new byte[record.length - 9];
+                    entry.readFully(ops);
+                    history.replay(text, ops, forward);
+                    sequence = seq;
+                }
+            }
+        }
+        return text;
+    }
+
+    // Journals a transaction of the undo history, forward when done or redone, backward when undone
+    void append(Spanned text, byte[] ops, boolean forward) {
+        if (writer.isShutdown()) return;
+        long seq = ++sequence;
+        writer.execute(() -> {
+            if (failure != null) return;
+            try {
+                writeRecord(seq, ops, forward);
+                if (queue.isEmpty()) {
+                    sync();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        });
+
+        // Checkpoint once rewriting the document costs less than the journal it replaces
+        journalBytes += ops.length + 17;
+        if (journalBytes > Math.max(MIN_CHECKPOINT_BYTES, 2L * text.length())) {
+            checkpoint(text);
+        }
+    }
+
+    void checkpoint(Spanned text) {
+        if (writer.isShutdown()) return;
+        KnifeSnapshot snapshot = KnifeSnapshot.of(text);
+        long seq = sequence;
+        journalBytes = 0;
+        writer.execute(() -> {
+            if (failure != null) return;
+            try {
+                writeCheckpoint(snapshot, seq);
+            } catch (IOException e) {
+                fail(e);
+            }
+        });
+    }
+
+    private void writeCheckpoint(KnifeSnapshot snapshot, long seq) throws IOException {
+        File temp = new File(checkpointFile.getPath() + ".tmp");
+        FileOutputStream file = new FileOutputStream(temp);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(CHECKPOINT_VERSION);
+            out.writeLong(seq);
+            KnifeBinary.write(snapshot, out);
+            out.flush();
+            file.getFD().sync();
+        }
+        if (!temp.renameTo(checkpointFile)) {
+            throw new IOException("Can't replace " + checkpointFile);
+        }
+
+        // Entries up to seq are in the checkpoint now. Recovery skips them anyway, so a crash
+        // before the journal is truncated is harmless.
+        if (journal != null) {
+            journal.close();
+        }
+        journalOut = new FileOutputStream(journalFile, false);
+        journal = new DataOutputStream(new BufferedOutputStream(journalOut));
+    }
+
+    // Record layout: length, CRC32 of the payload, then sequence, direction and the packed ops
+    private void writeRecord(long seq, byte[] ops, boolean forward) throws IOException {
+        if (journal == null) return;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(ops.length + 9);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeLong(seq);
+        record.writeBoolean(forward);
+        record.write(ops);
+        byte[] payload = bytes.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        journal.writeInt(payload.length);
+        journal.writeInt((int) crc.getValue());
+        journal.write(payload);
+    }
+
+    private static byte[] readRecord(DataInputStream in, long limit) throws IOException {
+        try {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length < 9 || length > limit) return null;
+
+            byte[] record = new byte[length];
+            in.readFully(record);
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            return (int) crc.getValue() == checksum ? record : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private void sync() throws IOException {
+        if (journal == null) return;
+        journal.flush();
+        journalOut.getFD().sync();
+    }
+
+    // Writer thread
+    private void fail(IOException e) {
+        if (failure != null) return;
+        failure = e;
+        report(e);
+    }
+
+    private void report(IOException e) {
+        mainHandler.post(() -> {
+            OnFailureListener listener = failureListener;
+            if (listener != null) listener.onAutosaveFailed(e);
+        });
+    }
+
+    public interface OnFailureListener {
+        void onAutosaveFailed(IOException e);
+    }
+
+}
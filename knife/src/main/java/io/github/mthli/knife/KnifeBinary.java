@@ -0,0 +1,207 @@
+package io.github.mthli.knife;
+
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.URLSpan;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Knife's own binary document format, for drafts that never leave the device. Nothing is escaped
+ * or parsed when loading, and it is smaller than HTML.
+ *
+ * Layout, big endian, varints are unsigned LEB128:
+ * <pre>
+ * int     magic "KNFB"
+ * byte    version
+ * varint  text length in chars
+ * string  text
+ * varint  span count, then for each span in the order of the source:
+ *   byte    type, the index in Knife.TYPES
+ *   varint  start, zigzag encoded difference to the previous start
+ *   varint  end - start
+ *   varint  flags, only the point and mark bits are read
+ *   string  URL, links only
+ * </pre>
+ * A string is a varint holding the byte count shifted left by one, then the bytes in UTF-8. Text
+ * with unpaired surrogates, which UTF-8 can't carry, is written in UTF-16 instead, with the low
+ * bit of the count set.
+ */
+final class KnifeBinary {
+
+    private static final int MAGIC = 0x4b4e4642; // "KNFB"
+    private static final int VERSION = 1;
+
+    private KnifeBinary() {}
+
+    static void write(Spanned text, OutputStream stream) throws IOException {
+        List<Object> spans = new ArrayList<>();
+        for (Object span : text.getSpans(0, text.length(), Object.class)) {
+            if (Knife.typeOf(span) != null) spans.add(span);
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        writeVarint(out, text.length());
+        writeString(out, text.toString());
+
+        writeVarint(out, spans.size());
+        int previous = 0;
+        for (Object span : spans) {
+            Class<?> type = Knife.typeOf(span);
+            int start = text.getSpanStart(span);
+            int end = text.getSpanEnd(span);
+
+            out.writeByte(Knife.typeIndex(type));
+            writeVarint(out, (start - previous) << 1 ^ (start - previous) >> 31);
+            writeVarint(out, end - start);
+            writeVarint(out, text.getSpanFlags(span));
+            if (type == Knife.URL) {
+                writeString(out, ((URLSpan) span).getURL());
+            }
+            previous = start;
+        }
+        out.flush();
+    }
+
+    static SpannableStringBuilder read(InputStream in, KnifeStyle style) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+        return read(ByteBuffer.wrap(bytes.toByteArray()), style);
+    }
+
+    // Reads from the buffer's position, e.g. a memory-mapped file, without changing the buffer
+    static SpannableStringBuilder read(ByteBuffer buffer, KnifeStyle style) throws IOException {
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        try {
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Not a Knife document");
+            }
+            int version = in.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported Knife document version " + version);
+            }
+
+            int length = readVarint(in);
+            String string = readString(in);
+            if (string.length() != length) {
+                throw new IOException("Corrupt Knife document text");
+            }
+            SpannableStringBuilder text = new KnifeEditable(string);
+
+            int count = readVarint(in);
+            int start = 0;
+            for (int i = 0; i < count; i++) {
+                int index = in.get();
+                if (index < 0 || index >= Knife.TYPES.length) {
+                    throw new IOException("Unknown span type " + index);
+                }
+                Class<?> type = Knife.TYPES[index];
+                int delta = readVarint(in);
+                start += delta >>> 1 ^ -(delta & 1);
+                int end = start + readVarint(in);
+                int flags = readVarint(in) & Spanned.SPAN_POINT_MARK_MASK;
+                String url = type == Knife.URL ? readString(in) : null;
+
+                if (start < 0 || end < start || end > length) {
+                    throw new IOException("Span out of bounds: " + start + " - " + end);
+                }
+                // Knife writes no paragraph spans, setSpan() throws for one off a line boundary
+                if (flags == Spanned.SPAN_PARAGRAPH) {
+                    throw new IOException("Unsupported span flags " + flags);
+                }
+                text.setSpan(style.createSpan(type, url), start, end, flags);
+            }
+            return text;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated Knife document", e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        // The charsets replace unpaired surrogates, UTF-16 is written char by char to keep them
+        if (hasUnpairedSurrogate(string)) {
+            writeVarint(out, 2 * string.length() << 1 | 1);
+            out.writeChars(string);
+            return;
+        }
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length << 1);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int header = readVarint(in);
+        int count = header >>> 1;
+        if (count > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        String string;
+        if ((header & 1) != 0) {
+            CharBuffer chars = in.asCharBuffer();
+            chars.limit(count / 2);
+            string = chars.toString();
+            in.position(in.position() + count);
+        } else if (in.hasArray()) {
+            string = new String(in.array(), in.arrayOffset() + in.position(), count,
+                    StandardCharsets.UTF_8);
+            in.position(in.position() + count);
+        } else {
+            byte[] bytes = new byte[count];
+            in.get(bytes);
+            string = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return string;
+    }
+
+    private static boolean hasUnpairedSurrogate(String string) {
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (Character.isHighSurrogate(c)
+                    && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+}
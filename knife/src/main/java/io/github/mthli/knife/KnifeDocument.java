@@ -0,0 +1,571 @@
+package io.github.mthli.knife;
+
+import android.os.Trace;
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.ParcelableSpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+import android.text.style.CharacterStyle;
+import android.text.style.ParagraphStyle;
+import android.text.style.URLSpan;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The formatting engine behind {@link Knife}, working on any Spannable with an explicit style and
+ * explicit ranges, without an EditText. Use it to process stored documents in the background.
+ *
+ * A document isn't thread-safe, but documents share nothing, so different documents can be
+ * worked on in parallel. If the text is an Editable the document follows its edits.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"}) // Public API
+public class KnifeDocument {
+
+  private final Spannable text;
+  private final KnifeStyle style;
+  private final KnifeLineIndex lines = new KnifeLineIndex();
+  // Only for an Editable, whose changes are seen by the watcher
+  private final KnifeHtmlCache html;
+  private int spanCount;
+  private KnifeMetrics metrics;
+
+  public KnifeDocument(Spannable text, KnifeStyle style) {
+    this.text = text;
+    this.style = style;
+
+    if (text instanceof Editable) {
+      html = new KnifeHtmlCache(lines);
+      spanCount = countSpans(text);
+      text.setSpan(new Watcher(), 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+    } else {
+      html = null;
+    }
+  }
+
+  public static KnifeDocument fromHtml(String html, KnifeStyle style) {
+    return fromHtml(html, style, false);
+  }
+
+  // For an editor, whose Editable is a copy unless it's a KnifeEditable already
+  static KnifeDocument fromHtml(String html, KnifeStyle style, boolean forEditor) {
+    KnifeDocument document =
+        new KnifeDocument(KnifeParser.fromHtml(html, style, forEditor), style);
+    document.normalize();
+    return document;
+  }
+
+  /** Reads a document written by {@link #writeTo}. */
+  public static KnifeDocument readFrom(InputStream in, KnifeStyle style) throws IOException {
+    return new KnifeDocument(KnifeBinary.read(in, style), style);
+  }
+
+  /** Same as {@link #readFrom(InputStream, KnifeStyle)}, e.g. from a memory-mapped file. */
+  public static KnifeDocument readFrom(ByteBuffer buffer, KnifeStyle style) throws IOException {
+    return new KnifeDocument(KnifeBinary.read(buffer, style), style);
+  }
+
+  public Spannable getText() {
+    return text;
+  }
+
+  public KnifeStyle getStyle() {
+    return style;
+  }
+
+  /** Number of Knife spans, kept up to date as the text changes instead of counted each time. */
+  public int getSpanCount() {
+    return html != null ? spanCount : countSpans(text);
+  }
+
+  /** Reports normalization to {@code metrics}, null to stop. */
+  public void setMetrics(KnifeMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public String toHtml() {
+    return toHtml(0);
+  }
+
+  /**
+   * Paragraphs unchanged since the last call are copied from a cache instead of being serialized
+   * again, so calling this after every edit costs about as much as the edit.
+   *
+   * @param option 0 or {@link Knife#TO_HTML_RAW_UNICODE}
+   */
+  public String toHtml(int option) {
+    if (html == null) {
+      return KnifeParser.toHtml(text, option);
+    }
+
+    StringBuilder out = new StringBuilder();
+    try {
+      KnifeParser.toHtml(text, out, option, html);
+    } catch (IOException e) {
+      // StringBuilder doesn't throw
+      throw new IllegalStateException(e);
+    }
+    return out.toString();
+  }
+
+  /** HTML of {@code [start, end)} only, e.g. to copy a selection, spans are cut at the edges. */
+  public String toHtml(int start, int end) {
+    return toHtml(start, end, 0);
+  }
+
+  public String toHtml(int start, int end, int option) {
+    return KnifeParser.toHtml(text, start, end, option);
+  }
+
+  public void toHtml(Appendable out) throws IOException {
+    toHtml(out, 0);
+  }
+
+  public void toHtml(Appendable out, int option) throws IOException {
+    if (html == null) {
+      KnifeParser.toHtml(text, out, option);
+    } else {
+      KnifeParser.toHtml(text, out, option, html);
+    }
+  }
+
+  /** Writes the document in Knife's binary format, for drafts that never need to be HTML. */
+  public void writeTo(OutputStream out) throws IOException {
+    KnifeBinary.write(text, out);
+  }
+
+  public KnifeSnapshot snapshot() {
+    return KnifeSnapshot.of(text);
+  }
+
+  public void set(Class<?> spanClass, int start, int end) {
+    setFormat(spanClass, start, end);
+  }
+
+  public void remove(Class<?> spanClass, int start, int end) {
+    removeFormat(spanClass, start, end);
+  }
+
+  public boolean has(Class<?> spanClass, int start, int end) {
+    if (isParagraphSpan(spanClass)) {
+      return isFullOfParagraphs(spanClass, start, end);
+    }
+    return isFullySpanned(spanClass, start, end);
+  }
+
+  public void toggle(Class<?> spanClass, int start, int end) {
+    if (isParagraphSpan(spanClass)) {
+      toggleParagraph(spanClass, start, end);
+    } else {
+      toggleSpan(spanClass, start, end);
+    }
+  }
+
+  /** The FORMAT_* bits of every format {@link #has} would report for the range. */
+  public int getFormatState(int start, int end) {
+    int state = 0;
+
+    CharacterStyle[] spans = text.getSpans(start, end, CharacterStyle.class);
+    for (Class<?> type : Knife.TYPES) {
+      if (!isParagraphSpan(type) && isFullySpanned(text, spans, type, start, end)) {
+        state |= Knife.formatOf(type);
+      }
+    }
+
+    int lineStart = findLineStart(start);
+    int lineEnd = findLineEnd(end);
+    if (lineStart != lineEnd) {
+      ParagraphStyle[] paragraphs = text.getSpans(
+          Math.max(0, lineStart - 1), Math.min(text.length(), lineEnd + 1), ParagraphStyle.class);
+      if (isFullOfParagraphs(paragraphs, Knife.BULLET, lineStart, lineEnd)) {
+        state |= Knife.FORMAT_BULLET;
+      }
+      if (isFullOfParagraphs(paragraphs, Knife.QUOTE, lineStart, lineEnd)) {
+        state |= Knife.FORMAT_QUOTE;
+      }
+    }
+    return state;
+  }
+
+  /** Sets every format in {@code formats}, links excluded since they need a URL. */
+  public void apply(int formats, int start, int end) {
+    if ((formats & Knife.FORMAT_URL) != 0) {
+      throw new IllegalArgumentException("Use setLink() method to add links");
+    }
+
+    for (Class<?> type : Knife.TYPES) {
+      if ((formats & Knife.formatOf(type)) != 0) {
+        setFormat(type, start, end);
+      }
+    }
+  }
+
+  public void clear(int formats, int start, int end) {
+    for (Class<?> type : Knife.TYPES) {
+      if ((formats & Knife.formatOf(type)) != 0) {
+        removeFormat(type, start, end);
+      }
+    }
+  }
+
+  public void setLink(String url, int start, int end) {
+    setSpan(Knife.URL, url, start, end);
+  }
+
+  public Span<String> getLink(int offset) {
+    URLSpan[] urls = text.getSpans(offset, offset, URLSpan.class);
+    if (urls.length == 0) return null;
+    URLSpan span = urls[0];
+    return new Span<>(span.getURL(), text.getSpanStart(span), text.getSpanEnd(span));
+  }
+
+  public int getParagraphCount() {
+    return lines.size(text) + 1;
+  }
+
+  /** The paragraph containing {@code offset}, with its index as data. */
+  public Span<Integer> getParagraph(int offset) {
+    offset = Math.max(0, Math.min(offset, text.length()));
+    return new Span<>(
+        lines.lineOf(text, offset), lines.lineStart(text, offset), lines.lineEnd(text, offset));
+  }
+
+  /** Drops foreign styles and puts paragraph spans back on line bounds, in the whole text. */
+  public void normalize() {
+    normalize(0, text.length());
+  }
+
+  /** Same as {@link #normalize()}, limited to the lines touching the range. */
+  public void normalize(int start, int end) {
+    start = findLineStart(Math.min(start, text.length()));
+    end = findLineEnd(Math.min(end, text.length()));
+
+    long started = beginSection(KnifeMetrics.CLEAR_NON_KNIFE_STYLES);
+    try {
+      clearNonKnifeStyles(start, end);
+    } finally {
+      endSection(KnifeMetrics.CLEAR_NON_KNIFE_STYLES, started);
+    }
+
+    started = beginSection(KnifeMetrics.FIX_PARAGRAPHS);
+    try {
+      fixParagraphs(Knife.BULLET, start, end);
+      fixParagraphs(Knife.QUOTE, start, end);
+    } finally {
+      endSection(KnifeMetrics.FIX_PARAGRAPHS, started);
+    }
+  }
+
+  private long beginSection(String section) {
+    Trace.beginSection(section);
+    return metrics != null ? System.nanoTime() : 0;
+  }
+
+  private void endSection(String section, long started) {
+    Trace.endSection();
+    if (metrics != null) {
+      metrics.onOperation(section, System.nanoTime() - started, text.length(), getSpanCount(), -1);
+    }
+  }
+
+  private static int countSpans(Spanned text) {
+    int count = 0;
+    for (Object span : text.getSpans(0, text.length(), Object.class)) {
+      if (Knife.typeOf(span) != null) count++;
+    }
+    return count;
+  }
+
+  private void clearNonKnifeStyles(int start, int end) {
+    ParcelableSpan[] spans = text.getSpans(start, end, ParcelableSpan.class);
+    for (ParcelableSpan span : spans) {
+      if (!span.getClass().getSimpleName().startsWith("Knife")) {
+        text.removeSpan(span);
+      }
+    }
+  }
+
+  private void setFormat(Class<?> spanClass, int start, int end) {
+    if (isParagraphSpan(spanClass)) {
+      setParagraph(spanClass, start, end);
+    } else {
+      setSpan(spanClass, null, start, end);
+    }
+  }
+
+  private void removeFormat(Class<?> spanClass, int start, int end) {
+    if (isParagraphSpan(spanClass)) {
+      removeParagraph(spanClass, start, end);
+    } else {
+      removeSpan(spanClass, start, end);
+    }
+  }
+
+  private static boolean isParagraphSpan(Class<?> spanClass) {
+    return spanClass == Knife.BULLET || spanClass == Knife.QUOTE;
+  }
+
+  private static boolean isSplittableSpan(Class<?> spanClass) {
+    return spanClass != Knife.URL;
+  }
+
+  private void setSpan(Class<?> spanClass, String url, int start, int end) {
+    if (start == end) {
+      Object[] spans = text.getSpans(start, end, spanClass);
+      for (Object span : spans) {
+        if (text.getSpanEnd(span) == end) {
+          setSpanFlag(text, span, Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+        }
+      }
+      return;
+    }
+
+    removeSpan(spanClass, start, end);
+
+    if (isSplittableSpan(spanClass)) {
+      Object[] before = text.getSpans(start, start, spanClass);
+      for (Object span : before) {
+        start = Math.min(start, text.getSpanStart(span));
+        text.removeSpan(span);
+      }
+
+      Object[] after = text.getSpans(end, end, spanClass);
+      for (Object span : after) {
+        end = Math.max(end, text.getSpanEnd(span));
+        text.removeSpan(span);
+      }
+    }
+
+    text.setSpan(style.createSpan(spanClass, url), start, end, Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+  }
+
+  private void removeSpan(Class<?> spanClass, int start, int end) {
+    if (start == end) {
+      Object[] spans = text.getSpans(start, end, spanClass);
+      for (Object span : spans) {
+        if (text.getSpanEnd(span) == end) {
+          setSpanFlag(text, span, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+      }
+      return;
+    }
+
+    Object[] spans = text.getSpans(start, end, spanClass);
+    for (Object span : spans) {
+      int s = text.getSpanStart(span);
+      int e = text.getSpanEnd(span);
+      text.removeSpan(span);
+
+      if (isSplittableSpan(spanClass)) {
+        if (s < start) setSpan(spanClass, null, s, start);
+        if (end < e) setSpan(spanClass, null, end, e);
+      }
+    }
+  }
+
+  private boolean isFullySpanned(Class<?> spanClass, int start, int end) {
+    return isFullySpanned(text, text.getSpans(start, end, spanClass), spanClass, start, end);
+  }
+
+  private static boolean isFullySpanned(
+      Spanned text, Object[] spans, Class<?> spanClass, int start, int end) {
+    if (start == end) {
+      for (Object span : spans) {
+        if (!spanClass.isInstance(span)) continue;
+        int s = text.getSpanStart(span);
+        int e = text.getSpanEnd(span);
+        int flag = text.getSpanFlags(span);
+        if ((start > s && end < e) || (end == e && flag == Spanned.SPAN_EXCLUSIVE_INCLUSIVE)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    // Sort the ranges by start and look for a gap
+    long[] ranges = new long[spans.length];
+    int count = 0;
+    for (Object span : spans) {
+      if (spanClass.isInstance(span)) {
+        ranges[count++] = ((long) text.getSpanStart(span) << 32) | text.getSpanEnd(span);
+      }
+    }
+    Arrays.sort(ranges, 0, count);
+
+    int covered = start;
+    for (int i = 0; i < count && covered < end; i++) {
+      if ((int) (ranges[i] >>> 32) > covered) return false;
+      covered = Math.max(covered, (int) ranges[i]);
+    }
+    return covered >= end;
+  }
+
+  private void toggleSpan(Class<?> spanClass, int start, int end) {
+    if (isFullySpanned(spanClass, start, end)) {
+      removeSpan(spanClass, start, end);
+    } else {
+      setSpan(spanClass, null, start, end);
+    }
+  }
+
+  private static void setSpanFlag(Spannable text, Object span, int flag) {
+    int s = text.getSpanStart(span);
+    int e = text.getSpanEnd(span);
+    text.removeSpan(span);
+    text.setSpan(span, s, e, flag);
+  }
+
+  private void setParagraph(Class<?> spanClass, int start, int end) {
+    start = findLineStart(start);
+    end = findLineEnd(end);
+
+    int lineStart = start;
+    while (lineStart < end) {
+      int lineEnd = findLineEnd(lineStart);
+      if (lineStart != lineEnd && !containsSpan(text, spanClass, lineStart, lineEnd)) {
+        text.setSpan(
+            style.createSpan(spanClass, null), lineStart, lineEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+      }
+      lineStart = lineEnd + 1;
+    }
+  }
+
+  private void removeParagraph(Class<?> spanClass, int start, int end) {
+    start = findLineStart(start);
+    end = findLineEnd(end);
+
+    Object[] spans = text.getSpans(start, end, spanClass);
+    for (Object span : spans) {
+      text.removeSpan(span);
+    }
+  }
+
+  private boolean isFullOfParagraphs(Class<?> spanClass, int start, int end) {
+    start = findLineStart(start);
+    end = findLineEnd(end);
+    if (start == end) return false;
+
+    Object[] spans =
+        text.getSpans(Math.max(0, start - 1), Math.min(text.length(), end + 1), spanClass);
+    return isFullOfParagraphs(spans, spanClass, start, end);
+  }
+
+  // Every line of [start, end], which are line bounds, has to intersect a span of the class.
+  // The spans are queried one char wider, a span only touching an empty line still counts.
+  private boolean isFullOfParagraphs(Object[] spans, Class<?> spanClass, int start, int end) {
+    int first = lines.lineOf(text, start);
+    boolean[] covered = new boolean[lines.lineOf(text, end) - first + 1];
+    int remaining = covered.length;
+
+    for (Object span : spans) {
+      if (!spanClass.isInstance(span)) continue;
+      int s = text.getSpanStart(span);
+      int e = text.getSpanEnd(span);
+
+      int last = lines.lineOf(text, Math.min(e, end));
+      for (int line = lines.lineOf(text, Math.max(s, start)); line <= last; line++) {
+        int lineStart = line > 0 ? lines.get(text, line - 1) + 1 : 0;
+        int lineEnd = line < lines.size(text) ? lines.get(text, line) : text.length();
+        if (!covered[line - first] && intersects(s, e, lineStart, lineEnd)) {
+          covered[line - first] = true;
+          remaining--;
+        }
+      }
+    }
+    return remaining == 0;
+  }
+
+  // Same rule as getSpans(): touching only counts when the span or the range is empty
+  private static boolean intersects(int spanStart, int spanEnd, int start, int end) {
+    if (spanStart > end || spanEnd < start) return false;
+    return spanStart == spanEnd || start == end || (spanStart != end && spanEnd != start);
+  }
+
+  private void toggleParagraph(Class<?> spanClass, int start, int end) {
+    if (isFullOfParagraphs(spanClass, start, end)) {
+      removeParagraph(spanClass, start, end);
+    } else {
+      setParagraph(spanClass, start, end);
+    }
+  }
+
+  private void fixParagraphs(Class<?> spanClass, int start, int end) {
+    Object[] spans = text.getSpans(start, end, spanClass);
+    for (Object span : spans) {
+      int s = text.getSpanStart(span);
+      int e = text.getSpanEnd(span);
+      int lineStart = findLineStart(s);
+      int lineEnd = findLineEnd(e);
+
+      if (s == lineStart && e == lineEnd) continue;
+
+      text.removeSpan(span);
+
+      int pos = lineStart;
+      while (pos < lineEnd) {
+        int next = findLineEnd(pos);
+        if (pos != next && !containsSpan(text, spanClass, pos, next)) {
+          text.setSpan(style.createSpan(spanClass, null), pos, next, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        pos = next + 1;
+      }
+    }
+  }
+
+  private int findLineStart(int pos) {
+    return lines.lineStart(text, pos);
+  }
+
+  private int findLineEnd(int pos) {
+    return lines.lineEnd(text, pos);
+  }
+
+  private static boolean containsSpan(Spanned text, Class<?> spanClass, int start, int end) {
+    return text.getSpans(start, end, spanClass).length > 0;
+  }
+
+  // Keeps the line index and the HTML cache in step with edits made to the text by anyone
+  private class Watcher implements TextWatcher, SpanWatcher, NoCopySpan {
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+      html.beforeTextChanged(s, start, count);
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+      lines.onTextChanged(s, start, before, count);
+      html.onTextChanged(s, start, before, count);
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {}
+
+    @Override
+    public void onSpanAdded(Spannable text, Object what, int start, int end) {
+      if (Knife.typeOf(what) != null) spanCount++;
+      if (isHtmlSpan(what)) html.onSpanChanged(text, start, end);
+    }
+
+    @Override
+    public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+      if (Knife.typeOf(what) != null) spanCount--;
+      if (isHtmlSpan(what)) html.onSpanChanged(text, start, end);
+    }
+
+    @Override
+    public void onSpanChanged(
+        Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+      if (isHtmlSpan(what)) html.onSpanMoved(text, ostart, oend, nstart, nend);
+    }
+
+    private boolean isHtmlSpan(Object span) {
+      return span instanceof CharacterStyle || span instanceof ParagraphStyle;
+    }
+  }
+}
@@ -0,0 +1,503 @@
+package io.github.mthli.knife;
+
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextWatcher;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The Editable of a Knife editor. Next to the spans of the framework it keeps an interval tree per
+ * Knife span type, so getSpans() of a Knife type costs O(log n) plus the spans found and never
+ * looks at spell check, composing, selection or watcher spans. Any other query is passed on.
+ *
+ * The trees follow the text through a watcher that runs before all the others. Positions in them
+ * are gap encoded like the text itself: the ones after the last edit are stored plus the gap
+ * length, so an edit only touches the spans around it and the ones between it and the last edit.
+ */
+final class KnifeEditable extends SpannableStringBuilder {
+
+    private static final int WATCHER_FLAGS = Spanned.SPAN_INCLUSIVE_INCLUSIVE | Spanned.SPAN_PRIORITY;
+    private static final int INITIAL_GAP = 1 << 29;
+
+    private final Tree[] trees = new Tree[Knife.TYPES.length];
+    private final Watcher watcher = new Watcher();
+    private final Random random = new Random();
+    private long nextOrder;
+
+    // Positions from gapStart on are stored plus gapLength
+    private final int initialGap;
+    private int gapStart;
+    private int gapLength;
+    // The encoding a tree is converted from, see Tree.recode()
+    private int oldGapStart;
+    private int oldGapLength;
+
+    // From beforeTextChanged() to onTextChanged(), while the trees are behind the text
+    private boolean changing;
+    // The replacement brings Knife spans, which the framework adds without telling the watchers
+    private boolean pasting;
+
+    KnifeEditable(CharSequence source) {
+        this(source, INITIAL_GAP);
+    }
+
+    // A small gap is regrown after every few edits, for tests
+    KnifeEditable(CharSequence source, int initialGap) {
+        super(source);
+        this.initialGap = initialGap;
+        gapLength = initialGap;
+        for (int i = 0; i < trees.length; i++) {
+            // Built from the copied spans on the first query
+            trees[i] = new Tree(i);
+        }
+        setSpan(watcher, 0, length(), WATCHER_FLAGS);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T[] getSpans(int queryStart, int queryEnd, Class<T> kind) {
+        int type = changing || queryStart > queryEnd ? -1 : Knife.typeIndex(kind);
+        if (type < 0) {
+            return super.getSpans(queryStart, queryEnd, kind);
+        }
+
+        Tree tree = trees[type];
+        if (tree.dirty) {
+            tree.rebuild();
+        }
+        List<Node> found = new ArrayList<>();
+        tree.collect(tree.root, encode(queryStart), encode(queryEnd), found);
+
+        // Same rules and order as the framework: insertion order, and a non-empty span only
+        // touching a non-empty query isn't in it
+        int count = 0;
+        for (Node node : found) {
+            int start = decode(node.start);
+            int end = decode(node.end);
+            if (start != end && queryStart != queryEnd && (start == queryEnd || end == queryStart)) {
+                continue;
+            }
+            found.set(count++, node);
+        }
+        List<Node> matches = found.subList(0, count);
+        if (count > 1) {
+            Collections.sort(matches, (a, b) -> Long.compare(a.order, b.order));
+        }
+
+        T[] spans = (T[]) Array.newInstance(kind, count);
+        for (int i = 0; i < count; i++) {
+            spans[i] = (T) matches.get(i).span;
+        }
+        return spans;
+    }
+
+    @Override
+    public SpannableStringBuilder replace(int start, int end, CharSequence tb, int tbstart,
+            int tbend) {
+        boolean outer = pasting;
+        pasting = tb instanceof Spanned && hasKnifeSpans((Spanned) tb, tbstart, tbend);
+        try {
+            return super.replace(start, end, tb, tbstart, tbend);
+        } finally {
+            pasting = outer;
+        }
+    }
+
+    @Override
+    public void clearSpans() {
+        super.clearSpans();
+        for (Tree tree : trees) {
+            tree.clear();
+        }
+        changing = false;
+        setSpan(watcher, 0, length(), WATCHER_FLAGS);
+    }
+
+    private static boolean hasKnifeSpans(Spanned text, int start, int end) {
+        for (Class<?> type : Knife.TYPES) {
+            if (text.getSpans(start, end, type).length > 0) return true;
+        }
+        return false;
+    }
+
+    private int encode(int position) {
+        return position < gapStart ? position : position + gapLength;
+    }
+
+    private int decode(int stored) {
+        return stored < gapStart ? stored : stored - gapLength;
+    }
+
+    // From the encoding in oldGapStart and oldGapLength to the current one
+    private int reencode(int stored) {
+        int position = stored < oldGapStart ? stored : stored - oldGapLength;
+        return encode(position);
+    }
+
+    private Tree treeOf(Object span) {
+        for (int i = 0; i < Knife.TYPES.length; i++) {
+            if (Knife.TYPES[i].isInstance(span)) {
+                return trees[i].dirty ? null : trees[i];
+            }
+        }
+        return null;
+    }
+
+    // Called before any other watcher sees the edit, the trees still have the old positions
+    private void onEdit(int start, int before, int count) {
+        int end = start + before;
+        int delta = count - before;
+        if (gapLength - delta < 0 || gapLength - delta > 2 * initialGap) {
+            moveGap(gapStart, initialGap + Math.max(delta, 0));
+        }
+
+        // The spans starting in the replaced range, and those ending there, are taken out and put
+        // back where the framework moved them. Positions after it only shift, which the gap does.
+        List<Node> touched = new ArrayList<>();
+        for (Tree tree : trees) {
+            if (!tree.dirty && tree.root != null) {
+                tree.takeOut(start, end, touched);
+            }
+        }
+
+        moveGap(end + 1, gapLength);
+        gapStart += delta;
+        gapLength -= delta;
+
+        for (Node node : touched) {
+            Tree tree = trees[node.type];
+            int spanStart = getSpanStart(node.span);
+            if (spanStart < 0) {
+                tree.nodes.remove(node.span);
+            } else {
+                node.start = encode(spanStart);
+                node.end = encode(getSpanEnd(node.span));
+                node.left = null;
+                node.right = null;
+                tree.root = tree.insert(tree.root, node);
+            }
+        }
+
+        if (pasting) {
+            for (Tree tree : trees) {
+                if (tree.dirty) continue;
+                for (Object span : super.getSpans(start, start + count, Knife.TYPES[tree.type])) {
+                    if (!tree.nodes.containsKey(span)) tree.add(span);
+                }
+            }
+        }
+    }
+
+    private void moveGap(int start, int length) {
+        if (start == gapStart && length == gapLength) return;
+
+        oldGapStart = gapStart;
+        oldGapLength = gapLength;
+        gapStart = start;
+        gapLength = length;
+        for (Tree tree : trees) {
+            if (!tree.dirty && tree.root != null) {
+                tree.recode();
+            }
+        }
+    }
+
+    private static final class Node {
+        final Object span;
+        final int type;
+        final long order;
+        final int priority;
+        // Encoded, see encode()
+        int start;
+        int end;
+        // The largest end in the subtree
+        int maxEnd;
+        Node left;
+        Node right;
+
+        Node(Object span, int type, long order, int priority) {
+            this.span = span;
+            this.type = type;
+            this.order = order;
+            this.priority = priority;
+        }
+    }
+
+    // A treap by start and insertion order, with the largest end of every subtree
+    private final class Tree {
+        final int type;
+        final IdentityHashMap<Object, Node> nodes = new IdentityHashMap<>();
+        Node root;
+        boolean dirty = true;
+        // Results of split() and remove()
+        private Node left;
+        private Node right;
+        private boolean found;
+
+        Tree(int type) {
+            this.type = type;
+        }
+
+        void clear() {
+            nodes.clear();
+            root = null;
+            dirty = false;
+        }
+
+        void rebuild() {
+            clear();
+            for (Object span : KnifeEditable.super.getSpans(0, length(), Knife.TYPES[type])) {
+                add(span);
+            }
+        }
+
+        void add(Object span) {
+            int start = getSpanStart(span);
+            if (start < 0) return;
+
+            Node node = new Node(span, type, nextOrder++, random.nextInt());
+            node.start = encode(start);
+            node.end = encode(getSpanEnd(span));
+            nodes.put(span, node);
+            root = insert(root, node);
+        }
+
+        void remove(Node node) {
+            nodes.remove(node.span);
+            detach(node);
+        }
+
+        // Where the framework has the span now, the same place in the insertion order
+        void move(Node node) {
+            int start = getSpanStart(node.span);
+            int end = getSpanEnd(node.span);
+            if (decode(node.start) == start && decode(node.end) == end) return;
+
+            if (!detach(node)) return;
+            node.start = encode(start);
+            node.end = encode(end);
+            node.left = null;
+            node.right = null;
+            root = insert(root, node);
+        }
+
+        // False if the node isn't where its position says, then the tree starts over
+        private boolean detach(Node node) {
+            found = false;
+            root = remove(root, node);
+            if (!found) dirty = true;
+            return found;
+        }
+
+        // Removes the nodes starting in [start, end], or before it and ending in it, into touched
+        void takeOut(int start, int end, List<Node> touched) {
+            int from = touched.size();
+            collect(root, encode(start), encode(start) - 1, touched);
+            int last = encode(end);
+            for (int i = touched.size() - 1; i >= from; i--) {
+                Node node = touched.get(i);
+                if (node.end > last) {
+                    touched.remove(i);
+                } else {
+                    detach(node);
+                }
+            }
+
+            split(root, encode(start), Long.MIN_VALUE);
+            Node before = left;
+            split(right, last + 1, Long.MIN_VALUE);
+            Node after = right;
+            addAll(left, touched);
+            root = merge(before, after);
+        }
+
+        // After moveGap(), the positions between the old and the new gap start change encoding:
+        // all of the nodes starting there, and the ends of the nodes starting before
+        void recode() {
+            if (oldGapLength != gapLength) {
+                recodeAll(root);
+                return;
+            }
+
+            int low = Math.min(oldGapStart, gapStart);
+            int high = Math.max(oldGapStart, gapStart);
+            int oldLow = low < oldGapStart ? low : low + oldGapLength;
+            split(root, oldLow, Long.MIN_VALUE);
+            Node before = left;
+            split(right, high < oldGapStart ? high : high + oldGapLength, Long.MIN_VALUE);
+            Node between = left;
+            Node after = right;
+            recodeAll(between);
+            recodeEnds(before, oldLow);
+            root = merge(merge(before, between), after);
+        }
+
+        private void recodeAll(Node node) {
+            if (node == null) return;
+            recodeAll(node.left);
+            recodeAll(node.right);
+            node.start = reencode(node.start);
+            node.end = reencode(node.end);
+            update(node);
+        }
+
+        private void recodeEnds(Node node, int min) {
+            if (node == null || node.maxEnd < min) return;
+            recodeEnds(node.left, min);
+            recodeEnds(node.right, min);
+            node.end = reencode(node.end);
+            update(node);
+        }
+
+        // The nodes with a start up to end and an end from start on, all encoded
+        void collect(Node node, int start, int end, List<Node> out) {
+            if (node == null || node.maxEnd < start) return;
+            collect(node.left, start, end, out);
+            if (node.start > end) return;
+            if (node.end >= start) out.add(node);
+            collect(node.right, start, end, out);
+        }
+
+        private void addAll(Node node, List<Node> out) {
+            if (node == null) return;
+            addAll(node.left, out);
+            out.add(node);
+            addAll(node.right, out);
+        }
+
+        Node insert(Node tree, Node node) {
+            if (tree == null) {
+                update(node);
+                return node;
+            }
+            if (node.priority > tree.priority) {
+                split(tree, node.start, node.order);
+                node.left = left;
+                node.right = right;
+                update(node);
+                return node;
+            }
+            if (isBefore(node, tree)) {
+                tree.left = insert(tree.left, node);
+            } else {
+                tree.right = insert(tree.right, node);
+            }
+            update(tree);
+            return tree;
+        }
+
+        private Node remove(Node tree, Node node) {
+            if (tree == null) return null;
+            if (tree == node) {
+                found = true;
+                return merge(tree.left, tree.right);
+            }
+            if (isBefore(node, tree)) {
+                tree.left = remove(tree.left, node);
+            } else {
+                tree.right = remove(tree.right, node);
+            }
+            update(tree);
+            return tree;
+        }
+
+        // Into the nodes before (start, order) in left and the others in right
+        private void split(Node tree, int start, long order) {
+            if (tree == null) {
+                left = null;
+                right = null;
+            } else if (tree.start < start || tree.start == start && tree.order < order) {
+                split(tree.right, start, order);
+                tree.right = left;
+                update(tree);
+                left = tree;
+            } else {
+                split(tree.left, start, order);
+                tree.left = right;
+                update(tree);
+                right = tree;
+            }
+        }
+
+        private Node merge(Node a, Node b) {
+            if (a == null) return b;
+            if (b == null) return a;
+            if (a.priority > b.priority) {
+                a.right = merge(a.right, b);
+                update(a);
+                return a;
+            }
+            b.left = merge(a, b.left);
+            update(b);
+            return b;
+        }
+
+        private boolean isBefore(Node a, Node b) {
+            return a.start < b.start || a.start == b.start && a.order < b.order;
+        }
+
+        private void update(Node node) {
+            int maxEnd = node.end;
+            if (node.left != null && node.left.maxEnd > maxEnd) maxEnd = node.left.maxEnd;
+            if (node.right != null && node.right.maxEnd > maxEnd) maxEnd = node.right.maxEnd;
+            node.maxEnd = maxEnd;
+        }
+    }
+
+    private final class Watcher implements TextWatcher, SpanWatcher, NoCopySpan {
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            changing = true;
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            changing = false;
+            onEdit(start, before, count);
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {}
+
+        @Override
+        public void onSpanAdded(Spannable text, Object what, int start, int end) {
+            Tree tree = treeOf(what);
+            if (tree != null && !tree.nodes.containsKey(what)) {
+                tree.add(what);
+            }
+        }
+
+        @Override
+        public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+            Tree tree = treeOf(what);
+            Node node = tree != null ? tree.nodes.get(what) : null;
+            if (node != null) {
+                tree.remove(node);
+            }
+        }
+
+        // Mostly the shift of every span after an edit, which the trees have already
+        @Override
+        public void onSpanChanged(
+                Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+            Tree tree = treeOf(what);
+            if (tree == null) return;
+            Node node = tree.nodes.get(what);
+            if (node == null) {
+                tree.add(what);
+            } else {
+                tree.move(node);
+            }
+        }
+    }
+}
@@ -0,0 +1,595 @@
+package io.github.mthli.knife;
+
+import android.text.Editable;
+import android.text.Selection;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextUtils;
+import android.text.style.URLSpan;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Undo/redo history kept as reversible operations instead of document snapshots.
+ *
+ * Text replacements come from the TextWatcher together with the Knife spans touching the
+ * replaced range, span additions and removals come from the SpanWatcher. Operations are
+ * grouped into transactions and replayed in place on the Editable.
+ *
+ * The history is bounded by a transaction count and by a byte budget. Once the estimated retained
+ * size goes over the budget the oldest transactions are deflated into a binary form, and evicted
+ * if that is still not enough. A deflated transaction is only inflated again when it is replayed.
+ */
+class KnifeHistory {
+
+    private static final int OP_TEXT = 0;
+    private static final int OP_SPAN_ADDED = 1;
+    private static final int OP_SPAN_REMOVED = 2;
+
+    private final KnifeStyle style;
+    private final int maxSize;
+    private final long maxBytes;
+
+    private final List<Transaction> transactions = new ArrayList<>();
+    private int cursor = 0;
+    private long retainedBytes = 0;
+    private Transaction pending;
+
+    // SpanWatcher#onSpanRemoved doesn't report flags, remember them while the span is attached.
+    private final Map<Object, Integer> flags = new WeakHashMap<>();
+    // Spans copied in by the last replacement, the Editable reports them once the change is done.
+    private final Set<Object> copied = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    private TextOp changing;
+    private boolean replaying = false;
+
+    KnifeHistory(KnifeStyle style, int maxSize, long maxBytes) {
+        this.style = style;
+        this.maxSize = maxSize;
+        this.maxBytes = maxBytes;
+    }
+
+    boolean isReplaying() {
+        return replaying;
+    }
+
+    void beforeTextChanged(Spanned text, int start, int count) {
+        if (replaying) return;
+        copied.clear();
+        begin(text);
+        changing = new TextOp(start, TextUtils.substring(text, start, start + count),
+                capture(text, start, start + count, null));
+    }
+
+    void onTextChanged(Spanned text, int start, int count) {
+        if (replaying || changing == null) return;
+        if (count == 0 && changing.removed.isEmpty()) {
+            changing = null;
+            return;
+        }
+
+        changing.inserted = TextUtils.substring(text, start, start + count);
+        changing.after = capture(text, start, start + count, copied);
+        pending.ops.add(changing);
+        changing = null;
+    }
+
+    void onSpanAdded(Spannable text, Object what, int start, int end) {
+        Class<?> type = Knife.typeOf(what);
+        if (type == null) return;
+
+        int flag = text.getSpanFlags(what);
+        flags.put(what, flag);
+        if (replaying || changing != null || copied.remove(what)) return;
+
+        begin(text);
+        pending.ops.add(new SpanOp(record(type, what, start, end, flag), true));
+    }
+
+    void onSpanRemoved(Spannable text, Object what, int start, int end) {
+        Class<?> type = Knife.typeOf(what);
+        if (type == null) return;
+
+        Integer flag = flags.remove(what);
+        copied.remove(what);
+        if (replaying || changing != null) return;
+
+        begin(text);
+        int f = flag != null ? flag : Knife.defaultFlags(type);
+        pending.ops.add(new SpanOp(record(type, what, start, end, f), false));
+    }
+
+    Transaction commit(Spanned text) {
+        if (pending == null) return null;
+        Transaction transaction = pending;
+        pending = null;
+        if (transaction.ops.isEmpty()) return null;
+
+        transaction.redoSelectionStart = Selection.getSelectionStart(text);
+        transaction.redoSelectionEnd = Selection.getSelectionEnd(text);
+        transaction.measure();
+
+        while (transactions.size() > cursor) {
+            retainedBytes -= transactions.remove(transactions.size() - 1).bytes;
+        }
+        transactions.add(transaction);
+        retainedBytes += transaction.bytes;
+        while (transactions.size() > maxSize) {
+            evictOldest();
+        }
+        cursor = transactions.size();
+        compact();
+        while (retainedBytes > maxBytes && transactions.size() > 1) {
+            evictOldest();
+        }
+        return transaction;
+    }
+
+    Transaction undo(Editable text) {
+        if (cursor <= 0) return null;
+        Transaction transaction = transactions.get(--cursor);
+        List<Op> ops = inflate(transaction);
+
+        replaying = true;
+        try {
+            for (int i = ops.size() - 1; i >= 0; i--) {
+                ops.get(i).undo(this, text);
+            }
+        } finally {
+            replaying = false;
+        }
+        compact();
+        return transaction;
+    }
+
+    Transaction redo(Editable text) {
+        if (cursor >= transactions.size()) return null;
+        Transaction transaction = transactions.get(cursor++);
+        List<Op> ops = inflate(transaction);
+
+        replaying = true;
+        try {
+            for (Op op : ops) {
+                op.redo(this, text);
+            }
+        } finally {
+            replaying = false;
+        }
+        compact();
+        return transaction;
+    }
+
+    // Applies the ops of Transaction#pack() to the text, e.g. when recovering from a journal
+    void replay(Editable text, byte[] packed, boolean forward) {
+        List<Op> ops = Transaction.unpack(packed);
+
+        replaying = true;
+        try {
+            if (forward) {
+                for (Op op : ops) {
+                    op.redo(this, text);
+                }
+            } else {
+                for (int i = ops.size() - 1; i >= 0; i--) {
+                    ops.get(i).undo(this, text);
+                }
+            }
+        } finally {
+            replaying = false;
+        }
+    }
+
+    // Forget everything, e.g. when a new document replaces the text
+    void clear() {
+        transactions.clear();
+        cursor = 0;
+        retainedBytes = 0;
+        pending = null;
+        changing = null;
+        flags.clear();
+        copied.clear();
+    }
+
+    // The newest undo steps in their packed form, at most maxBytes of them, e.g. for the saved
+    // instance state. Redo steps are left out.
+    byte[] saveState(long maxBytes) {
+        List<byte[]> packs = new ArrayList<>();
+        long size = 0;
+        for (int i = cursor - 1; i >= 0; i--) {
+            byte[] packed = transactions.get(i).pack();
+            if (size + packed.length > maxBytes) break;
+            size += packed.length;
+            packs.add(packed);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(packs.size());
+            for (int i = packs.size() - 1; i >= 0; i--) {
+                Transaction transaction = transactions.get(cursor - 1 - i);
+                out.writeInt(transaction.selectionStart);
+                out.writeInt(transaction.selectionEnd);
+                out.writeInt(transaction.redoSelectionStart);
+                out.writeInt(transaction.redoSelectionEnd);
+                out.writeInt(packs.get(i).length);
+                out.write(packs.get(i));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Replaces the history with undo steps from saveState(), they stay packed until replayed
+    void restoreState(byte[] state) {
+        clear();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(state))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Transaction transaction = new Transaction();
+                transaction.selectionStart = in.readInt();
+                transaction.selectionEnd = in.readInt();
+                transaction.redoSelectionStart = in.readInt();
+                transaction.redoSelectionEnd = in.readInt();
+                transaction.packed = new byte[in.readInt()];
+                in.readFully(transaction.packed);
+                transaction.ops = null;
+                transaction.measure();
+
+                transactions.add(transaction);
+                retainedBytes += transaction.bytes;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        cursor = transactions.size();
+    }
+
+    long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    // Deflate the oldest transactions first, leaving the two around the cursor alone since they are
+    // replayed next. Eviction only happens on commit, so stepping through the history never loses it.
+    private void compact() {
+        for (int i = 0; i < transactions.size() && retainedBytes > maxBytes; i++) {
+            Transaction transaction = transactions.get(i);
+            if (transaction.ops != null && i != cursor - 1 && i != cursor) {
+                retainedBytes -= transaction.bytes;
+                transaction.deflate();
+                retainedBytes += transaction.bytes;
+            }
+        }
+    }
+
+    private void evictOldest() {
+        retainedBytes -= transactions.remove(0).bytes;
+        cursor = Math.max(0, cursor - 1);
+    }
+
+    private List<Op> inflate(Transaction transaction) {
+        if (transaction.ops == null) {
+            retainedBytes -= transaction.bytes;
+            transaction.inflate();
+            retainedBytes += transaction.bytes;
+        }
+        return transaction.ops;
+    }
+
+    private void begin(Spanned text) {
+        if (pending != null) return;
+        pending = new Transaction();
+        pending.selectionStart = Selection.getSelectionStart(text);
+        pending.selectionEnd = Selection.getSelectionEnd(text);
+    }
+
+    // Knife spans intersecting or touching [start, end], these are the only spans a replacement
+    // of that range can move in any way other than a plain shift.
+    private SpanRecord[] capture(Spanned text, int start, int end, Set<Object> objects) {
+        Object[] inner = text.getSpans(start, end, Object.class);
+        Object[] atStart = text.getSpans(start, start, Object.class);
+        Object[] atEnd = text.getSpans(end, end, Object.class);
+
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        List<SpanRecord> records = new ArrayList<>();
+        for (Object[] spans : new Object[][] {inner, atStart, atEnd}) {
+            for (Object span : spans) {
+                Class<?> type = Knife.typeOf(span);
+                if (type == null || !seen.add(span)) continue;
+
+                int flag = text.getSpanFlags(span);
+                flags.put(span, flag);
+                records.add(record(type, span, text.getSpanStart(span), text.getSpanEnd(span), flag));
+                if (objects != null) objects.add(span);
+            }
+        }
+        return records.toArray(new SpanRecord[0]);
+    }
+
+    private static SpanRecord record(Class<?> type, Object span, int start, int end, int flags) {
+        String url = span instanceof URLSpan ? ((URLSpan) span).getURL() : null;
+        return new SpanRecord(type, url, start, end, flags);
+    }
+
+    private void add(Spannable text, SpanRecord record) {
+        text.setSpan(style.createSpan(record.type, record.url), record.start, record.end, record.flags);
+    }
+
+    private static void remove(Spannable text, SpanRecord record) {
+        for (Object span : text.getSpans(record.start, record.end, record.type)) {
+            if (text.getSpanStart(span) == record.start
+                    && text.getSpanEnd(span) == record.end
+                    && (record.url == null || record.url.equals(((URLSpan) span).getURL()))) {
+                text.removeSpan(span);
+                return;
+            }
+        }
+    }
+
+    static final class Transaction {
+        List<Op> ops = new ArrayList<>();
+        byte[] packed;
+        long bytes;
+        int selectionStart;
+        int selectionEnd;
+        int redoSelectionStart;
+        int redoSelectionEnd;
+
+        void measure() {
+            bytes = 64;
+            if (ops != null) {
+                for (Op op : ops) {
+                    bytes += op.retainedBytes();
+                }
+            } else {
+                bytes += packed.length;
+            }
+        }
+
+        void deflate() {
+            packed = pack();
+            ops = null;
+            measure();
+        }
+
+        void inflate() {
+            ops = unpack(packed);
+            packed = null;
+            measure();
+        }
+
+        // The deflated binary form of the ops, without changing the transaction
+        byte[] pack() {
+            if (packed != null) return packed;
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+                out.writeInt(ops.size());
+                for (Op op : ops) {
+                    op.write(out);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        static List<Op> unpack(byte[] packed) {
+            try (DataInputStream in = new DataInputStream(
+                    new InflaterInputStream(new ByteArrayInputStream(packed)))) {
+                int count = in.readInt();
+                List<Op> list = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    list.add(readOp(in));
+                }
+                return list;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    static final class SpanRecord {
+        final Class<?> type;
+        final String url;
+        final int start;
+        final int end;
+        final int flags;
+
+        SpanRecord(Class<?> type, String url, int start, int end, int flags) {
+            this.type = type;
+            this.url = url;
+            this.start = start;
+            this.end = end;
+            this.flags = flags;
+        }
+
+        int retainedBytes() {
+            return 32 + (url != null ? 40 + 2 * url.length() : 0);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(Knife.typeIndex(type));
+            out.writeInt(start);
+            out.writeInt(end);
+            out.writeInt(flags);
+            writeString(out, url);
+        }
+
+        static SpanRecord read(DataInputStream in) throws IOException {
+            Class<?> type = Knife.TYPES[in.readByte()];
+            int start = in.readInt();
+            int end = in.readInt();
+            int flags = in.readInt();
+            return new SpanRecord(type, readString(in), start, end, flags);
+        }
+    }
+
+    abstract static class Op {
+        abstract void undo(KnifeHistory history, Editable text);
+
+        abstract void redo(KnifeHistory history, Editable text);
+
+        abstract int retainedBytes();
+
+        abstract void write(DataOutputStream out) throws IOException;
+    }
+
+    private static Op readOp(DataInputStream in) throws IOException {
+        int kind = in.readByte();
+        if (kind == OP_TEXT) {
+            int start = in.readInt();
+            TextOp op = new TextOp(start, readString(in), readRecords(in));
+            op.inserted = readString(in);
+            op.after = readRecords(in);
+            return op;
+        }
+        return new SpanOp(SpanRecord.read(in), kind == OP_SPAN_ADDED);
+    }
+
+    private static void writeRecords(DataOutputStream out, SpanRecord[] records) throws IOException {
+        out.writeInt(records.length);
+        for (SpanRecord record : records) {
+            record.write(out);
+        }
+    }
+
+    private static SpanRecord[] readRecords(DataInputStream in) throws IOException {
+        SpanRecord[] records = new SpanRecord[in.readInt()];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = SpanRecord.read(in);
+        }
+        return records;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(value.length());
+        out.writeChars(value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = in.readChar();
+        }
+        return new String(chars);
+    }
+
+    private static int recordBytes(SpanRecord[] records) {
+        int bytes = 16;
+        for (SpanRecord record : records) {
+            bytes += record.retainedBytes();
+        }
+        return bytes;
+    }
+
+    static final class TextOp extends Op {
+        final int start;
+        final String removed;
+        final SpanRecord[] before;
+        String inserted;
+        SpanRecord[] after;
+
+        TextOp(int start, String removed, SpanRecord[] before) {
+            this.start = start;
+            this.removed = removed;
+            this.before = before;
+        }
+
+        @Override
+        void undo(KnifeHistory history, Editable text) {
+            replace(history, text, inserted.length(), removed, after, before);
+        }
+
+        @Override
+        void redo(KnifeHistory history, Editable text) {
+            replace(history, text, removed.length(), inserted, before, after);
+        }
+
+        @Override
+        int retainedBytes() {
+            return 96 + 2 * (removed.length() + inserted.length())
+                    + recordBytes(before) + recordBytes(after);
+        }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(OP_TEXT);
+            out.writeInt(start);
+            writeString(out, removed);
+            writeRecords(out, before);
+            writeString(out, inserted);
+            writeRecords(out, after);
+        }
+
+        private void replace(KnifeHistory history, Editable text, int length,
+                String replacement, SpanRecord[] current, SpanRecord[] target) {
+            for (SpanRecord record : current) {
+                remove(text, record);
+            }
+            text.replace(start, start + length, replacement);
+            for (SpanRecord record : target) {
+                history.add(text, record);
+            }
+        }
+    }
+
+    static final class SpanOp extends Op {
+        final SpanRecord span;
+        final boolean added;
+
+        SpanOp(SpanRecord span, boolean added) {
+            this.span = span;
+            this.added = added;
+        }
+
+        @Override
+        void undo(KnifeHistory history, Editable text) {
+            if (added) {
+                remove(text, span);
+            } else {
+                history.add(text, span);
+            }
+        }
+
+        @Override
+        void redo(KnifeHistory history, Editable text) {
+            if (added) {
+                history.add(text, span);
+            } else {
+                remove(text, span);
+            }
+        }
+
+        @Override
+        int retainedBytes() {
+            return 24 + span.retainedBytes();
+        }
+
+        @Override
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(added ? OP_SPAN_ADDED : OP_SPAN_REMOVED);
+            span.write(out);
+        }
+    }
+
+}
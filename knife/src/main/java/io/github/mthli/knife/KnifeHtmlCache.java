@@ -0,0 +1,132 @@
+package io.github.mthli.knife;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The HTML of a {@link KnifeDocument} in pieces, one per run of lines that serializes on its own,
+ * usually a single paragraph or list item. Text and span changes drop the pieces of the lines they
+ * touch, so toHtml() after an edit serializes those lines again and copies everything else.
+ *
+ * Entries are kept per line, every line of a piece pointing at the piece, and are shifted along
+ * with the line index when lines are inserted or removed.
+ */
+final class KnifeHtmlCache {
+
+    private final KnifeLineIndex lines;
+    private final List<KnifeParser.Fragment> fragments = new ArrayList<>();
+    private int option = -1;
+
+    // Between beforeTextChanged() and onTextChanged()
+    private int changeLine = -1;
+    private int changeLines;
+
+    // The last text change, until the next one or toHtml(). Spannables report the spans it moved
+    // only after the text watchers have run.
+    private boolean shifting;
+    private int shiftStart;
+    private int shiftEnd;
+    private int shiftDelta;
+
+    KnifeHtmlCache(KnifeLineIndex lines) {
+        this.lines = lines;
+    }
+
+    // Number of lines, after dropping everything if the option changed or the cache lost track
+    int prepare(CharSequence text, int option) {
+        shifting = false;
+        int count = lines.size(text) + 1;
+        if (option != this.option || fragments.size() != count) {
+            fragments.clear();
+            fragments.addAll(Collections.nCopies(count, null));
+            this.option = option;
+        }
+        return count;
+    }
+
+    KnifeParser.Fragment get(int line) {
+        return fragments.get(line);
+    }
+
+    void put(int line, KnifeParser.Fragment fragment) {
+        for (int i = line; i < line + fragment.lines; i++) {
+            fragments.set(i, fragment);
+        }
+    }
+
+    int lineStart(CharSequence text, int line) {
+        return line > 0 ? lines.get(text, line - 1) + 1 : 0;
+    }
+
+    // text is still the old text here, and the line index hasn't seen the change yet
+    void beforeTextChanged(CharSequence text, int start, int count) {
+        shifting = false;
+        if (fragments.isEmpty()) return;
+        changeLine = lines.lineOf(text, start);
+        changeLines = lines.lineOf(text, start + count) - changeLine + 1;
+    }
+
+    // After the line index: the changed lines are replaced by as many empty entries as there are
+    // lines in the new text
+    void onTextChanged(CharSequence text, int start, int before, int count) {
+        int first = changeLine;
+        changeLine = -1;
+        if (first < 0) return;
+
+        shifting = true;
+        shiftStart = start;
+        shiftEnd = start + before;
+        shiftDelta = count - before;
+
+        if (first + changeLines > fragments.size()) {
+            fragments.clear();
+            return;
+        }
+        invalidate(first, first + changeLines - 1);
+        fragments.subList(first, first + changeLines).clear();
+        int added = lines.lineOf(text, start + count) - lines.lineOf(text, start) + 1;
+        fragments.addAll(first, Collections.nCopies(added, null));
+    }
+
+    // Old positions are before the text change that moved the span, if any
+    void onSpanMoved(CharSequence text, int ostart, int oend, int nstart, int nend) {
+        if (shifting && isShift(ostart, nstart) && isShift(oend, nend)) return;
+
+        onSpanChanged(text, Math.min(ostart, nstart), Math.max(ostart, nstart));
+        onSpanChanged(text, Math.min(oend, nend), Math.max(oend, nend));
+    }
+
+    // An edge that kept its place in the text, whose line was either changed or only shifted
+    private boolean isShift(int from, int to) {
+        return from <= shiftStart && to == from || from >= shiftEnd && to == from + shiftDelta;
+    }
+
+    void onSpanChanged(CharSequence text, int start, int end) {
+        // Spans moved by a text change are all within the changed lines
+        if (changeLine >= 0 || fragments.isEmpty()) return;
+
+        int length = text.length();
+        int first = lines.lineOf(text, Math.max(0, Math.min(start, length)));
+        int last = lines.lineOf(text, Math.max(0, Math.min(end, length)));
+        invalidate(first, Math.min(last, fragments.size() - 1));
+    }
+
+    // Drops the lines and the rest of the pieces they are part of
+    private void invalidate(int first, int last) {
+        KnifeParser.Fragment head = fragments.get(first);
+        KnifeParser.Fragment tail = fragments.get(last);
+
+        for (int i = first - 1; head != null && i >= 0 && fragments.get(i) == head; i--) {
+            fragments.set(i, null);
+        }
+        for (int i = first; i <= last; i++) {
+            fragments.set(i, null);
+        }
+        int size = fragments.size();
+        for (int i = last + 1; tail != null && i < size && fragments.get(i) == tail; i++) {
+            fragments.set(i, null);
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+package io.github.mthli.knife;
+
+import java.util.Arrays;
+
+/**
+ * Sorted offsets of the '\n' characters in the editor text, kept up to date from the TextWatcher.
+ *
+ * The offsets live in a gap buffer placed at the last edit. Entries before the gap are absolute,
+ * entries after it are stored as distances from the end of the text, so an edit never has to
+ * shift them. Typing costs O(1) and line lookups are binary searches.
+ */
+class KnifeLineIndex {
+
+    private int[] breaks = new int[16];
+    private int gapStart = 0;
+    private int gapEnd = breaks.length;
+    private int length = -1;
+
+    // Called from onTextChanged, text is already the new text
+    void onTextChanged(CharSequence text, int start, int before, int count) {
+        if (length < 0 || length + count - before != text.length()) {
+            rebuild(text);
+            return;
+        }
+
+        moveGap(search(start));
+        while (gapEnd < breaks.length && length - breaks[gapEnd] < start + before) {
+            gapEnd++;
+        }
+        length += count - before;
+
+        for (int i = start; i < start + count; i++) {
+            if (text.charAt(i) == '\n') {
+                insert(i);
+            }
+        }
+    }
+
+    int size(CharSequence text) {
+        check(text);
+        return gapStart + breaks.length - gapEnd;
+    }
+
+    // Offset of the i-th line break
+    int get(CharSequence text, int i) {
+        check(text);
+        return at(i);
+    }
+
+    // Number of line breaks before pos, i.e. the index of the line containing pos
+    int lineOf(CharSequence text, int pos) {
+        check(text);
+        return search(pos);
+    }
+
+    int lineStart(CharSequence text, int pos) {
+        check(text);
+        if (pos <= 0) return 0;
+        int i = search(Math.min(pos, length));
+        return i > 0 ? at(i - 1) + 1 : 0;
+    }
+
+    int lineEnd(CharSequence text, int pos) {
+        check(text);
+        if (pos >= length) return length;
+        int i = search(Math.max(pos, 0));
+        return i < count() ? at(i) : length;
+    }
+
+    private void check(CharSequence text) {
+        if (length != text.length()) {
+            rebuild(text);
+        }
+    }
+
+    private void rebuild(CharSequence text) {
+        gapStart = 0;
+        gapEnd = breaks.length;
+        length = text.length();
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) == '\n') {
+                insert(i);
+            }
+        }
+    }
+
+    private int count() {
+        return gapStart + breaks.length - gapEnd;
+    }
+
+    private int at(int i) {
+        return i < gapStart ? breaks[i] : length - breaks[gapEnd + i - gapStart];
+    }
+
+    // Index of the first line break at or after pos
+    private int search(int pos) {
+        int low = 0;
+        int high = count();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (at(mid) < pos) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void moveGap(int index) {
+        while (gapStart > index) {
+            breaks[--gapEnd] = length - breaks[--gapStart];
+        }
+        while (gapStart < index) {
+            breaks[gapStart++] = length - breaks[gapEnd++];
+        }
+    }
+
+    private void insert(int offset) {
+        if (gapStart == gapEnd) {
+            int tail = breaks.length - gapEnd;
+            int[] grown = Arrays.copyOf(breaks, breaks.length * 2);
+            System.arraycopy(breaks, gapEnd, grown, grown.length - tail, tail);
+            gapEnd = grown.length - tail;
+            breaks = grown;
+        }
+        breaks[gapStart++] = offset;
+    }
+
+    static int findLineStart(CharSequence text, int pos) {
+        if (pos <= 0) return 0;
+        for (int i = pos - 1; i >= 0; i--) {
+            if (text.charAt(i) == '\n') return i + 1;
+        }
+        return 0;
+    }
+
+    static int findLineEnd(CharSequence text, int pos) {
+        if (pos >= text.length()) return text.length();
+        for (int i = pos; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') return i;
+        }
+        return text.length();
+    }
+
+}
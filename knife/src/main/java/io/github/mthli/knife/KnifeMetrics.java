@@ -0,0 +1,31 @@
+package io.github.mthli.knife;
+
+/**
+ * Timings of Knife's hot paths, set with {@link Knife#setMetrics} or
+ * {@link KnifeDocument#setMetrics}, e.g. to send slow documents to telemetry. The same operations
+ * show up in Perfetto and systrace as sections named after the constants below.
+ *
+ * Called on the thread of the operation right after it finished, so record and return.
+ */
+public interface KnifeMetrics {
+
+    String AFTER_TEXT_CHANGED = "Knife.afterTextChanged";
+    String CLEAR_NON_KNIFE_STYLES = "Knife.clearNonKnifeStyles";
+    String FIX_PARAGRAPHS = "Knife.fixParagraphs";
+    String ADD_HISTORY = "Knife.addHistory";
+    String SET_HTML = "Knife.setHtml";
+    String GET_HTML = "Knife.getHtml";
+    String UNDO = "Knife.undo";
+    String REDO = "Knife.redo";
+
+    /**
+     * @param operation one of the constants above
+     * @param durationNanos wall time, nested operations included
+     * @param length document length in chars afterwards
+     * @param spanCount Knife spans in the document afterwards
+     * @param historyBytes bytes retained by the undo history, -1 for operations of a document
+     */
+    void onOperation(String operation, long durationNanos, int length, int spanCount,
+            long historyBytes);
+
+}
@@ -19,6 +19,8 @@ package io.github.mthli.knife;
 
 import android.graphics.Typeface;
 import android.text.Html;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.TextUtils;
 import android.text.style.BulletSpan;
@@ -31,25 +33,243 @@ import android.text.style.StyleSpan;
 import android.text.style.URLSpan;
 import android.text.style.UnderlineSpan;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 class KnifeParser {
 
-    static Spanned fromHtml(String source) {
-        return Html.fromHtml(source, null, new KnifeTagHandler());
+    // Html sets its own framework spans, and KnifeTagHandler reports the <li> and <del> it handles.
+    // All of them are collected as plain ranges and turned into Knife spans once at the end, so the
+    // converter's output is used as is and nothing is looked up or merged on the text while parsing.
+    // For an editor the text is moved into a KnifeEditable, which the editor adopts as is.
+    static Spannable fromHtml(String source, KnifeStyle style, boolean forEditor) {
+        Ranges ranges = new Ranges();
+        Spanned spanned = Html.fromHtml(source, null, new KnifeTagHandler(ranges));
+        Spannable text = spanned instanceof Spannable
+                ? (Spannable) spanned
+                : new SpannableStringBuilder(spanned);
+
+        Object[] spans = text.getSpans(0, text.length(), Object.class);
+        for (Object span : spans) {
+            int start = text.getSpanStart(span);
+            int end = text.getSpanEnd(span);
+
+            if (span instanceof StyleSpan) {
+                int textStyle = ((StyleSpan) span).getStyle();
+                if ((textStyle & Typeface.BOLD) != 0) {
+                    ranges.add(Knife.BOLD, start, end, null);
+                }
+                if ((textStyle & Typeface.ITALIC) != 0) {
+                    ranges.add(Knife.ITALIC, start, end, null);
+                }
+            } else if (span instanceof UnderlineSpan) {
+                ranges.add(Knife.UNDERLINE, start, end, null);
+            } else if (span instanceof StrikethroughSpan) {
+                ranges.add(Knife.STRIKE, start, end, null);
+            } else if (span instanceof URLSpan) {
+                String url = ((URLSpan) span).getURL();
+                if (url != null && !url.isEmpty()) {
+                    ranges.add(Knife.URL, start, end, url);
+                }
+            } else if (span instanceof BulletSpan) {
+                ranges.add(Knife.BULLET, start, end, null);
+            } else if (span instanceof QuoteSpan) {
+                ranges.add(Knife.QUOTE, start, end, null);
+            } else {
+                continue;
+            }
+
+            text.removeSpan(span);
+        }
+
+        if (!forEditor) {
+            ranges.apply(text, style);
+            return text;
+        }
+
+        // The one copy an editor makes of a document, before the Knife spans are added, so only
+        // the text and the spans Knife doesn't know are copied
+        KnifeEditable editable = new KnifeEditable(text);
+        ranges.apply(editable, style);
+        return editable;
+    }
+
+    static final class Ranges {
+        private final List<List<int[]>> ranges = new ArrayList<>(Knife.TYPES.length);
+        private final List<String> urls = new ArrayList<>();
+
+        Ranges() {
+            for (int i = 0; i < Knife.TYPES.length; i++) {
+                ranges.add(new ArrayList<>());
+            }
+        }
+
+        void add(Class<?> spanClass, int start, int end, String url) {
+            if (start >= end) {
+                return;
+            }
+
+            if (url != null) {
+                ranges.get(Knife.typeIndex(spanClass)).add(new int[]{start, end, urls.size()});
+                urls.add(url);
+            } else {
+                ranges.get(Knife.typeIndex(spanClass)).add(new int[]{start, end, -1});
+            }
+        }
+
+        void apply(Spannable text, KnifeStyle style) {
+            for (int i = 0; i < ranges.size(); i++) {
+                List<int[]> list = ranges.get(i);
+                if (list.isEmpty()) {
+                    continue;
+                }
+
+                // By start, the outer one first when two start together
+                Collections.sort(list, (a, b) -> a[0] != b[0] ? a[0] - b[0] : b[1] - a[1]);
+
+                Class<?> spanClass = Knife.TYPES[i];
+                if (spanClass == Knife.BULLET || spanClass == Knife.QUOTE) {
+                    applyParagraphs(text, style, spanClass, list);
+                } else if (spanClass == Knife.URL) {
+                    applyLinks(text, style, list);
+                } else {
+                    applyStyles(text, style, spanClass, list);
+                }
+            }
+        }
+
+        // Overlapping or touching ranges of a style become one span
+        private void applyStyles(Spannable text, KnifeStyle style, Class<?> spanClass, List<int[]> list) {
+            int start = list.get(0)[0];
+            int end = list.get(0)[1];
+            for (int[] range : list) {
+                if (range[0] > end) {
+                    text.setSpan(style.createSpan(spanClass, null), start, end,
+                            Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+                    start = range[0];
+                }
+                end = Math.max(end, range[1]);
+            }
+            text.setSpan(style.createSpan(spanClass, null), start, end,
+                    Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+        }
+
+        // Links can't be merged, a link nested in another one is dropped
+        private void applyLinks(Spannable text, KnifeStyle style, List<int[]> list) {
+            int end = 0;
+            for (int[] range : list) {
+                if (range[0] >= end) {
+                    text.setSpan(style.createSpan(Knife.URL, urls.get(range[2])), range[0], range[1],
+                            Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+                    end = range[1];
+                }
+            }
+        }
+
+        // One span per line, without the line break, and never twice on the same line
+        private void applyParagraphs(Spannable text, KnifeStyle style, Class<?> spanClass,
+                List<int[]> list) {
+            int done = 0;
+            for (int[] range : list) {
+                int lineStart = Math.max(KnifeLineIndex.findLineStart(text, range[0]), done);
+                while (lineStart < range[1]) {
+                    int lineEnd = KnifeLineIndex.findLineEnd(text, lineStart);
+                    if (lineStart != lineEnd) {
+                        text.setSpan(style.createSpan(spanClass, null), lineStart, lineEnd,
+                                Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    }
+                    lineStart = lineEnd + 1;
+                }
+                done = Math.max(done, lineStart);
+            }
+        }
+    }
+
+    static String toHtml(Spanned text, int option) {
+        return toHtml(text, 0, text.length(), option);
     }
 
-    static String toHtml(Spanned text) {
+    static String toHtml(Spanned text, int start, int end, int option) {
         StringBuilder out = new StringBuilder();
-        withinHtml(out, text);
-        return tidy(out.toString());
+        try {
+            toHtml(text, start, end, out, option);
+        } catch (IOException e) {
+            // StringBuilder doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    // option is 0 or Knife.TO_HTML_RAW_UNICODE
+    static void toHtml(Spanned text, Appendable appendable, int option) throws IOException {
+        toHtml(text, 0, text.length(), appendable, option);
+    }
+
+    // Only [start, end) is walked, spans crossing its edges are cut there as if the range had been
+    // copied out first. The range is clamped to the text.
+    static void toHtml(Spanned text, int start, int end, Appendable appendable, int option)
+            throws IOException {
+        start = Math.max(0, Math.min(start, text.length()));
+        end = Math.max(start, Math.min(end, text.length()));
+
+        HtmlOutput out = new HtmlOutput(appendable, (option & Knife.TO_HTML_RAW_UNICODE) != 0);
+        withinHtml(out, text, start, end);
+        out.finish();
+    }
+
+    // Same output as toHtml(text, appendable, option), except that runs of lines still in the
+    // cache are copied from there instead of being serialized again
+    static void toHtml(Spanned text, Appendable appendable, int option, KnifeHtmlCache cache)
+            throws IOException {
+        boolean rawUnicode = (option & Knife.TO_HTML_RAW_UNICODE) != 0;
+        HtmlOutput out = new HtmlOutput(appendable, rawUnicode);
+        FragmentRecorder recorder = new FragmentRecorder(rawUnicode);
+        int count = cache.prepare(text, option);
+
+        for (int line = 0; line < count; ) {
+            Fragment fragment = cache.get(line);
+            if (fragment == null) {
+                int start = cache.lineStart(text, line);
+                int next = line + 1;
+                while (next < count && !isBlockStart(text, cache.lineStart(text, next))) {
+                    next++;
+                }
+                int end = next < count ? cache.lineStart(text, next) : text.length();
+
+                withinHtml(recorder, text, start, end);
+                fragment = recorder.toFragment(next - line);
+                cache.put(line, fragment);
+            }
+            fragment.writeTo(out);
+            line += fragment.lines;
+        }
+        out.finish();
+    }
+
+    // A line start where the text can be cut and both sides serialized on their own, with the
+    // same result: no paragraph span covers the line break before it.
+    private static boolean isBlockStart(Spanned text, int offset) {
+        for (ParagraphStyle span : text.getSpans(offset - 1, offset, ParagraphStyle.class)) {
+            if (text.getSpanStart(span) != offset || text.getSpanEnd(span) != offset) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private static void withinHtml(StringBuilder out, Spanned text) {
+    private static void withinHtml(HtmlOutput out, Spanned text,
+            int start, int end) throws IOException {
         int next;
 
-        for (int i = 0; i < text.length(); i = next) {
-            next = text.nextSpanTransition(i, text.length(), ParagraphStyle.class);
+        for (int i = start; i < end; i = next) {
+            next = text.nextSpanTransition(i, end, ParagraphStyle.class);
 
-            ParagraphStyle[] styles = text.getSpans(i, next, ParagraphStyle.class);
+            ParagraphStyle[] styles = nonEmpty(text, text.getSpans(i, next, ParagraphStyle.class));
             if (styles.length == 2) {
                 if (styles[0] instanceof BulletSpan && styles[1] instanceof QuoteSpan) {
                     // Let a <br> follow the BulletSpan or QuoteSpan end, so next++
@@ -73,20 +293,38 @@ class KnifeParser {
         }
     }
 
-    private static void withinBulletThenQuote(StringBuilder out, Spanned text, int start, int end) {
-        out.append("<ul><li>");
+    // An empty paragraph span at either end of a run holds none of it. Left in, it formatted the
+    // run up to the next transition, however far, and a cached piece cut in between came out
+    // differently.
+    private static ParagraphStyle[] nonEmpty(Spanned text, ParagraphStyle[] styles) {
+        int count = 0;
+        for (ParagraphStyle style : styles) {
+            if (text.getSpanStart(style) != text.getSpanEnd(style)) {
+                styles[count++] = style;
+            }
+        }
+        return count == styles.length ? styles : Arrays.copyOf(styles, count);
+    }
+
+    private static void withinBulletThenQuote(HtmlOutput out, Spanned text,
+            int start, int end) throws IOException {
+        out.openList();
+        out.append("<li>");
         withinQuote(out, text, start, end);
-        out.append("</li></ul>");
+        out.append("</li>");
+        out.closeList();
     }
 
-    private static void withinQuoteThenBullet(StringBuilder out, Spanned text, int start, int end) {
+    private static void withinQuoteThenBullet(HtmlOutput out, Spanned text,
+            int start, int end) throws IOException {
         out.append("<blockquote>");
         withinBullet(out, text, start, end);
-        out.append("</blockquote>");
+        out.closeBlockquote();
     }
 
-    private static void withinBullet(StringBuilder out, Spanned text, int start, int end) {
-        out.append("<ul>");
+    private static void withinBullet(HtmlOutput out, Spanned text,
+            int start, int end) throws IOException {
+        out.openList();
 
         int next;
 
@@ -105,10 +343,11 @@ class KnifeParser {
             }
         }
 
-        out.append("</ul>");
+        out.closeList();
     }
 
-    private static void withinQuote(StringBuilder out, Spanned text, int start, int end) {
+    private static void withinQuote(HtmlOutput out, Spanned text,
+            int start, int end) throws IOException {
         int next;
 
         for (int i = start; i < end; i = next) {
@@ -122,12 +361,13 @@ class KnifeParser {
             withinContent(out, text, i, next);
 
             for (int s = 0; s < spansCount; s++) {
-                out.append("</blockquote>");
+                out.closeBlockquote();
             }
         }
     }
 
-    private static void withinContent(StringBuilder out, Spanned text, int start, int end) {
+    private static void withinContent(HtmlOutput out, Spanned text,
+            int start, int end) throws IOException {
         int next;
 
         for (int i = start; i < end; i = next) {
@@ -149,8 +389,14 @@ class KnifeParser {
     // Copy from https://android.googlesource
     // .com/platform/frameworks/base/+/master/core/java/android/text/Html.java,
     // remove some tag because we don't need them in Knife.
-    private static void withinParagraph(StringBuilder out, Spanned text,
-            int start, int end, int nl) {
+    //
+    // Unlike Html, inline tags stay open across span transitions: at each transition only the tags
+    // that end are closed, together with whatever is nested inside them, and only the new ones are
+    // opened. A bold run crossing an italic one is one <b>, never </i></b><b><i>.
+    private static void withinParagraph(HtmlOutput out, Spanned text,
+            int start, int end, int nl) throws IOException {
+        List<InlineTag> open = new ArrayList<>();
+        List<InlineTag> wanted = new ArrayList<>();
 
         int next;
 
@@ -158,38 +404,65 @@ class KnifeParser {
             next = text.nextSpanTransition(i, end, CharacterStyle.class);
 
             CharacterStyle[] spans = text.getSpans(i, next, CharacterStyle.class);
+            wanted.clear();
             //noinspection ForLoopReplaceableByForEach - For better performance
             for (int j = 0; j < spans.length; j++) {
+                // An empty span, e.g. a format set at the cursor, is returned for the runs on
+                // both sides of it but formats neither
+                if (text.getSpanStart(spans[j]) == text.getSpanEnd(spans[j])) continue;
+
+                // Past the paragraph only the paragraph end matters, which keeps the output of
+                // a paragraph independent of the rest of the text
+                int spanEnd = Math.min(text.getSpanEnd(spans[j]), end);
+
                 if (spans[j] instanceof StyleSpan) {
                     int style = ((StyleSpan) spans[j]).getStyle();
 
                     if ((style & Typeface.BOLD) != 0) {
-                        out.append("<b>");
+                        want(wanted, "<b>", "</b>", spanEnd);
                     }
 
                     if ((style & Typeface.ITALIC) != 0) {
-                        out.append("<i>");
+                        want(wanted, "<i>", "</i>", spanEnd);
                     }
                 }
 
                 if (spans[j] instanceof UnderlineSpan) {
-                    out.append("<u>");
+                    want(wanted, "<u>", "</u>", spanEnd);
                 }
 
                 // Use standard strikethrough tag <del> rather than <s> or <strike>
                 if (spans[j] instanceof StrikethroughSpan) {
-                    out.append("<del>");
+                    want(wanted, "<del>", "</del>", spanEnd);
                 }
 
                 if (spans[j] instanceof URLSpan) {
-                    out.append("<a href=\"");
-                    out.append(((URLSpan) spans[j]).getURL());
-                    out.append("\">");
+                    String url = ((URLSpan) spans[j]).getURL();
+                    want(wanted, "<a href=\"" + escapeAttribute(url) + "\">", "</a>", spanEnd);
                 }
+            }
+
+            // Keep the open tags up to the first one that isn't wanted anymore
+            int keep = 0;
+            while (keep < open.size() && wanted.remove(open.get(keep))) {
+                keep++;
+            }
+            for (int k = open.size() - 1; k >= keep; k--) {
+                out.append(open.remove(k).close);
+            }
 
+            // The longest lasting tags go outside, so they don't have to be reopened later
+            Collections.sort(wanted, (a, b) -> Integer.compare(b.end, a.end));
+            for (InlineTag tag : wanted) {
+                out.append(tag.open);
+                open.add(tag);
+            }
+
+            //noinspection ForLoopReplaceableByForEach
+            for (int j = 0; j < spans.length; j++) {
                 if (spans[j] instanceof ImageSpan) {
                     out.append("<img src=\"");
-                    out.append(((ImageSpan) spans[j]).getSource());
+                    out.append(escapeAttribute(((ImageSpan) spans[j]).getSource()));
                     out.append("\">");
 
                     // Don't output the dummy character underlying the image.
@@ -198,77 +471,355 @@ class KnifeParser {
             }
 
             withinStyle(out, text, i, next);
-            for (int j = spans.length - 1; j >= 0; j--) {
-                if (spans[j] instanceof URLSpan) {
-                    out.append("</a>");
-                }
+        }
 
-                if (spans[j] instanceof StrikethroughSpan) {
-                    out.append("</del>");
+        for (int k = open.size() - 1; k >= 0; k--) {
+            out.append(open.get(k).close);
+        }
+
+        for (int i = 0; i < nl; i++) {
+            out.lineBreak();
+        }
+    }
+
+    // Overlapping spans of the same kind need the tag only once
+    private static void want(List<InlineTag> wanted, String open, String close, int end) {
+        for (InlineTag tag : wanted) {
+            if (tag.open.equals(open)) {
+                tag.end = Math.max(tag.end, end);
+                return;
+            }
+        }
+        wanted.add(new InlineTag(open, close, end));
+    }
+
+    // Equal by markup, so the same tag from another span continues the open one
+    private static final class InlineTag {
+        final String open;
+        final String close;
+        int end;
+
+        InlineTag(String open, String close, int end) {
+            this.open = open;
+            this.close = close;
+            this.end = end;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof InlineTag && open.equals(((InlineTag) o).open);
+        }
+
+        @Override
+        public int hashCode() {
+            return open.hashCode();
+        }
+    }
+
+    // Clean runs between the characters that need escaping are copied through in bulk, chunk by
+    // chunk, only the special characters themselves take the slow path below.
+    private static void withinStyle(HtmlOutput out, CharSequence text,
+            int start, int end) throws IOException {
+        char[] chars = out.chars;
+        int i = start;
+        while (i < end) {
+            int count = Math.min(end - i, chars.length);
+            TextUtils.getChars(text, i, i + count, chars, 0);
+
+            int j = 0;
+            while (j < count) {
+                int run = j;
+                while (j < count) {
+                    char c = chars[j];
+                    if (c < ESCAPE.length ? ESCAPE[c] : !out.rawUnicode || !isRawChar(c)) break;
+                    if (c == ' ') {
+                        int next = j + 1;
+                        if (next < count ? chars[next] == ' '
+                                : i + next < end && text.charAt(i + next) == ' ') break;
+                    }
+                    j++;
                 }
+                out.write(chars, run, j);
 
-                if (spans[j] instanceof UnderlineSpan) {
-                    out.append("</u>");
+                if (j < count) {
+                    j = escape(out, text, i + j, end) - i;
                 }
+            }
+            i += j;
+        }
+    }
 
-                if (spans[j] instanceof StyleSpan) {
-                    int style = ((StyleSpan) spans[j]).getStyle();
+    // Characters below 0x80 that escape() handles, everything above is escaped too unless the
+    // output is raw Unicode
+    private static final boolean[] ESCAPE = new boolean[0x80];
 
-                    if ((style & Typeface.BOLD) != 0) {
-                        out.append("</b>");
-                    }
+    static {
+        for (char c = 0; c < ' '; c++) {
+            ESCAPE[c] = true;
+        }
+        ESCAPE[0x7F] = true;
+        ESCAPE['<'] = true;
+        ESCAPE['>'] = true;
+        ESCAPE['&'] = true;
+    }
 
-                    if ((style & Typeface.ITALIC) != 0) {
-                        out.append("</i>");
+    // Writes the character at i escaped, returns the index after the characters it consumed
+    private static int escape(HtmlOutput out, CharSequence text, int i, int end)
+            throws IOException {
+        char c = text.charAt(i);
+
+        if (c == '<') {
+            out.append("&lt;");
+        } else if (c == '>') {
+            out.append("&gt;");
+        } else if (c == '&') {
+            out.append("&amp;");
+        } else if (c >= 0xD800 && c <= 0xDFFF) {
+            if (c < 0xDC00 && i + 1 < end) {
+                char d = text.charAt(i + 1);
+                if (d >= 0xDC00 && d <= 0xDFFF) {
+                    i++;
+                    if (out.rawUnicode) {
+                        out.append(c).append(d);
+                    } else {
+                        int codepoint = 0x010000 | (int) c - 0xD800 << 10 | (int) d - 0xDC00;
+                        out.append("&#").append(Integer.toString(codepoint)).append(";");
                     }
                 }
             }
-        }
+        } else if (c > 0x7E || c < ' ') {
+            out.append("&#").append(Integer.toString(c)).append(";");
+        } else if (c == ' ') {
+            while (i + 1 < end && text.charAt(i + 1) == ' ') {
+                out.append("&nbsp;");
+                i++;
+            }
 
-        for (int i = 0; i < nl; i++) {
-            out.append("<br>");
+            out.append(' ');
+        } else {
+            out.append(c);
         }
+        return i + 1;
     }
 
-    private static void withinStyle(StringBuilder out, CharSequence text, int start, int end) {
-        for (int i = start; i < end; i++) {
-            char c = text.charAt(i);
+    // A quoted attribute value, with the markup characters escaped like in text and the quote too
+    private static String escapeAttribute(String value) {
+        if (value == null) return "";
 
+        StringBuilder escaped = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String entity;
             if (c == '<') {
-                out.append("&lt;");
+                entity = "&lt;";
             } else if (c == '>') {
-                out.append("&gt;");
+                entity = "&gt;";
             } else if (c == '&') {
-                out.append("&amp;");
-            } else if (c >= 0xD800 && c <= 0xDFFF) {
-                if (c < 0xDC00 && i + 1 < end) {
-                    char d = text.charAt(i + 1);
-                    if (d >= 0xDC00 && d <= 0xDFFF) {
-                        i++;
-                        int codepoint = 0x010000 | (int) c - 0xD800 << 10 | (int) d - 0xDC00;
-                        out.append("&#").append(codepoint).append(";");
-                    }
-                }
-            } else if (c > 0x7E || c < ' ') {
-                out.append("&#").append((int) c).append(";");
-            } else if (c == ' ') {
-                while (i + 1 < end && text.charAt(i + 1) == ' ') {
-                    out.append("&nbsp;");
-                    i++;
-                }
+                entity = "&amp;";
+            } else if (c == '"') {
+                entity = "&quot;";
+            } else {
+                if (escaped != null) escaped.append(c);
+                continue;
+            }
+            if (escaped == null) {
+                escaped = new StringBuilder(value.length() + 16).append(value, 0, i);
+            }
+            escaped.append(entity);
+        }
+        return escaped != null ? escaped.toString() : value;
+    }
+
+    // Written as is in raw Unicode output. C1 controls are still escaped like the C0 ones, and
+    // surrogates go through escape() to keep pairs together.
+    private static boolean isRawChar(char c) {
+        return c >= 0xA0 && !Character.isSurrogate(c);
+    }
+
+    // Writes the markup straight through, except that a </ul> directly followed by <ul> is merged
+    // into one list and the first <br> after a </ul> or </blockquote> is dropped, since the block
+    // already ends the line.
+    private static class HtmlOutput implements Appendable {
+        private final Appendable out;
+        final boolean rawUnicode;
+        // Scratch space for withinStyle()
+        final char[] chars = new char[4096];
+        private boolean pendingListEnd = false;
+        private boolean afterBlock = false;
+
+        HtmlOutput(Appendable out, boolean rawUnicode) {
+            this.out = out;
+            this.rawUnicode = rawUnicode;
+        }
 
-                out.append(' ');
+        void openList() throws IOException {
+            if (pendingListEnd) {
+                pendingListEnd = false;
             } else {
-                out.append(c);
+                append("<ul>");
+            }
+        }
+
+        void closeList() throws IOException {
+            flush();
+            pendingListEnd = true;
+        }
+
+        void closeBlockquote() throws IOException {
+            append("</blockquote>");
+            afterBlock = true;
+        }
+
+        void lineBreak() throws IOException {
+            if (pendingListEnd || afterBlock) {
+                flush();
+            } else {
+                out.append("<br>");
+            }
+        }
+
+        void finish() throws IOException {
+            flush();
+        }
+
+        private void flush() throws IOException {
+            if (pendingListEnd) {
+                out.append("</ul>");
+                pendingListEnd = false;
+            }
+            afterBlock = false;
+        }
+
+        void write(char[] chars, int start, int end) throws IOException {
+            if (start == end) return;
+            flush();
+            if (out instanceof StringBuilder) {
+                ((StringBuilder) out).append(chars, start, end - start);
+            } else if (out instanceof Writer) {
+                ((Writer) out).write(chars, start, end - start);
+            } else {
+                out.append(CharBuffer.wrap(chars, start, end - start));
+            }
+        }
+
+        @Override
+        public HtmlOutput append(CharSequence csq) throws IOException {
+            flush();
+            out.append(csq);
+            return this;
+        }
+
+        @Override
+        public HtmlOutput append(CharSequence csq, int start, int end) throws IOException {
+            flush();
+            out.append(csq, start, end);
+            return this;
+        }
+
+        @Override
+        public HtmlOutput append(char c) throws IOException {
+            flush();
+            out.append(c);
+            return this;
+        }
+    }
+
+    private static final int OPEN_LIST = 0;
+    private static final int CLOSE_LIST = 1;
+    private static final int CLOSE_BLOCKQUOTE = 2;
+    private static final int LINE_BREAK = 3;
+
+    // The HTML of a run of lines as written before HtmlOutput merges lists and drops line breaks,
+    // with the calls that do that kept as marks, so it can be written into any output later.
+    static final class Fragment {
+        private final String html;
+        // Offset into html << 2 | the call
+        private final int[] marks;
+        final int lines;
+
+        private Fragment(String html, int[] marks, int lines) {
+            this.html = html;
+            this.marks = marks;
+            this.lines = lines;
+        }
+
+        private void writeTo(HtmlOutput out) throws IOException {
+            int written = 0;
+            for (int mark : marks) {
+                int offset = mark >>> 2;
+                // An empty append would still flush a pending </ul>
+                if (offset > written) {
+                    out.append(html, written, offset);
+                    written = offset;
+                }
+
+                switch (mark & 3) {
+                    case OPEN_LIST:
+                        out.openList();
+                        break;
+                    case CLOSE_LIST:
+                        out.closeList();
+                        break;
+                    case CLOSE_BLOCKQUOTE:
+                        out.closeBlockquote();
+                        break;
+                    default:
+                        out.lineBreak();
+                        break;
+                }
+            }
+            if (html.length() > written) {
+                out.append(html, written, html.length());
             }
         }
     }
 
-    private static String tidy(String html) {
-        return html
-                .replace("</ul><ul>", "")
-                .replace("</ul><br>", "</ul>")
-                .replace("</blockquote><br>", "</blockquote>");
+    private static final class FragmentRecorder extends HtmlOutput {
+        private final StringBuilder html;
+        private int[] marks = new int[8];
+        private int size = 0;
+
+        FragmentRecorder(boolean rawUnicode) {
+            this(new StringBuilder(), rawUnicode);
+        }
+
+        private FragmentRecorder(StringBuilder html, boolean rawUnicode) {
+            super(html, rawUnicode);
+            this.html = html;
+        }
+
+        @Override
+        void openList() {
+            mark(OPEN_LIST);
+        }
+
+        @Override
+        void closeList() {
+            mark(CLOSE_LIST);
+        }
+
+        @Override
+        void closeBlockquote() {
+            mark(CLOSE_BLOCKQUOTE);
+        }
+
+        @Override
+        void lineBreak() {
+            mark(LINE_BREAK);
+        }
+
+        private void mark(int call) {
+            if (size == marks.length) marks = Arrays.copyOf(marks, size * 2);
+            marks[size++] = html.length() << 2 | call;
+        }
+
+        // Takes what was recorded so far and starts over
+        Fragment toFragment(int lines) {
+            Fragment fragment = new Fragment(html.toString(), Arrays.copyOf(marks, size), lines);
+            html.setLength(0);
+            size = 0;
+            return fragment;
+        }
     }
 
 }
@@ -0,0 +1,262 @@
+package io.github.mthli.knife;
+
+import android.text.GetChars;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A frozen copy of a Knife text that can be read from any thread, e.g. to run {@link #toHtml()} on
+ * a background executor while the user keeps typing.
+ *
+ * Taking it only copies the chars and the position of each Knife span, the span objects themselves
+ * are immutable and shared. The lookup structures used by getSpans() are built on first use, on
+ * whatever thread reads the snapshot.
+ */
+public final class KnifeSnapshot implements Spanned, GetChars {
+
+    private final char[] chars;
+    // Knife spans in the order the source returned them
+    private final Object[] spans;
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] flags;
+
+    private volatile Index index;
+
+    private KnifeSnapshot(char[] chars, Object[] spans, int[] starts, int[] ends, int[] flags) {
+        this.chars = chars;
+        this.spans = spans;
+        this.starts = starts;
+        this.ends = ends;
+        this.flags = flags;
+    }
+
+    /** Must be called on the thread that owns {@code text}, usually the main thread. */
+    public static KnifeSnapshot of(Spanned text) {
+        char[] chars = new char[text.length()];
+        TextUtils.getChars(text, 0, chars.length, chars, 0);
+
+        Object[] all = text.getSpans(0, chars.length, Object.class);
+        Object[] spans = new Object[all.length];
+        int[] starts = new int[all.length];
+        int[] ends = new int[all.length];
+        int[] flags = new int[all.length];
+
+        int count = 0;
+        for (Object span : all) {
+            if (Knife.typeOf(span) == null) continue;
+            spans[count] = span;
+            starts[count] = text.getSpanStart(span);
+            ends[count] = text.getSpanEnd(span);
+            flags[count] = text.getSpanFlags(span);
+            count++;
+        }
+
+        return new KnifeSnapshot(chars, Arrays.copyOf(spans, count), Arrays.copyOf(starts, count),
+                Arrays.copyOf(ends, count), Arrays.copyOf(flags, count));
+    }
+
+    public String toHtml() {
+        return toHtml(0);
+    }
+
+    /** @param option 0 or {@link Knife#TO_HTML_RAW_UNICODE} */
+    public String toHtml(int option) {
+        return KnifeParser.toHtml(this, option);
+    }
+
+    public String toHtml(int start, int end) {
+        return toHtml(start, end, 0);
+    }
+
+    public String toHtml(int start, int end, int option) {
+        return KnifeParser.toHtml(this, start, end, option);
+    }
+
+    public void toHtml(Appendable out) throws IOException {
+        toHtml(out, 0);
+    }
+
+    public void toHtml(Appendable out, int option) throws IOException {
+        KnifeParser.toHtml(this, out, option);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        KnifeBinary.write(this, out);
+    }
+
+    @Override
+    public int length() {
+        return chars.length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return chars[index];
+    }
+
+    @Override
+    public void getChars(int start, int end, char[] dest, int destoff) {
+        System.arraycopy(chars, start, dest, destoff, end - start);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new SpannableStringBuilder(this, start, end);
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T[] getSpans(int start, int end, Class<T> type) {
+        if (type == null) type = (Class<T>) Object.class;
+
+        Hits hits = new Hits();
+        index().collect(0, spans.length, start, end, type, hits);
+        Arrays.sort(hits.items, 0, hits.size);
+
+        T[] result = (T[]) Array.newInstance(type, hits.size);
+        for (int i = 0; i < hits.size; i++) {
+            result[i] = (T) spans[hits.items[i]];
+        }
+        return result;
+    }
+
+    @Override
+    public int getSpanStart(Object span) {
+        Integer i = index().positions.get(span);
+        return i != null ? starts[i] : -1;
+    }
+
+    @Override
+    public int getSpanEnd(Object span) {
+        Integer i = index().positions.get(span);
+        return i != null ? ends[i] : -1;
+    }
+
+    @Override
+    public int getSpanFlags(Object span) {
+        Integer i = index().positions.get(span);
+        return i != null ? flags[i] : 0;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes") // Spanned declares a raw Class, an override can't narrow it
+    public int nextSpanTransition(int start, int limit, Class type) {
+        int[] transitions = index().transitions(type != null ? type : Object.class);
+        int i = Arrays.binarySearch(transitions, start + 1);
+        if (i < 0) i = -i - 1;
+        return i < transitions.length ? Math.min(transitions[i], limit) : limit;
+    }
+
+    private Index index() {
+        Index result = index;
+        if (result == null) {
+            result = new Index();
+            index = result;
+        }
+        return result;
+    }
+
+    // Spans sorted by start as an implicit binary tree, every node knowing the largest end in its
+    // subtree, so a range query skips whole subtrees instead of testing every span.
+    private final class Index {
+
+        final int[] order;
+        final int[] maxEnds;
+        final Map<Object, Integer> positions = new IdentityHashMap<>();
+        final Map<Class<?>, int[]> transitions = new ConcurrentHashMap<>();
+
+        Index() {
+            long[] keys = new long[spans.length];
+            for (int i = 0; i < spans.length; i++) {
+                keys[i] = ((long) starts[i] << 32) | i;
+                positions.put(spans[i], i);
+            }
+            Arrays.sort(keys);
+
+            order = new int[spans.length];
+            for (int i = 0; i < keys.length; i++) {
+                order[i] = (int) keys[i];
+            }
+            maxEnds = new int[spans.length];
+            build(0, spans.length);
+        }
+
+        private int build(int low, int high) {
+            if (low >= high) return Integer.MIN_VALUE;
+            int mid = (low + high) >>> 1;
+            int max = Math.max(ends[order[mid]], Math.max(build(low, mid), build(mid + 1, high)));
+            maxEnds[mid] = max;
+            return max;
+        }
+
+        // Adds the spans getSpans() would return for [start, end], same rules as Spannable
+        void collect(int low, int high, int start, int end, Class<?> type, Hits hits) {
+            if (low >= high) return;
+            int mid = (low + high) >>> 1;
+            if (maxEnds[mid] < start) return;
+
+            collect(low, mid, start, end, type, hits);
+            int i = order[mid];
+            if (starts[i] > end) return;
+
+            if (intersects(starts[i], ends[i], start, end) && type.isInstance(spans[i])) {
+                hits.add(i);
+            }
+            collect(mid + 1, high, start, end, type, hits);
+        }
+
+        int[] transitions(Class<?> type) {
+            int[] result = transitions.get(type);
+            if (result != null) return result;
+
+            int[] points = new int[spans.length * 2];
+            int count = 0;
+            for (int i = 0; i < spans.length; i++) {
+                if (type.isInstance(spans[i])) {
+                    points[count++] = starts[i];
+                    points[count++] = ends[i];
+                }
+            }
+            Arrays.sort(points, 0, count);
+
+            int unique = 0;
+            for (int i = 0; i < count; i++) {
+                if (unique == 0 || points[unique - 1] != points[i]) points[unique++] = points[i];
+            }
+            result = Arrays.copyOf(points, unique);
+            transitions.put(type, result);
+            return result;
+        }
+    }
+
+    private static final class Hits {
+        int[] items = new int[8];
+        int size = 0;
+
+        void add(int item) {
+            if (size == items.length) items = Arrays.copyOf(items, size * 2);
+            items[size++] = item;
+        }
+    }
+
+    private static boolean intersects(int spanStart, int spanEnd, int start, int end) {
+        if (spanStart > end || spanEnd < start) return false;
+        return spanStart == spanEnd || start == end || (spanStart != end && spanEnd != start);
+    }
+
+}
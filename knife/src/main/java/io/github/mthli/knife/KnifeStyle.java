@@ -0,0 +1,110 @@
+package io.github.mthli.knife;
+
+import android.graphics.Color;
+
+import io.github.mthli.knife.spans.KnifeBoldSpan;
+import io.github.mthli.knife.spans.KnifeBulletSpan;
+import io.github.mthli.knife.spans.KnifeItalicSpan;
+import io.github.mthli.knife.spans.KnifeQuoteSpan;
+import io.github.mthli.knife.spans.KnifeStrikethroughSpan;
+import io.github.mthli.knife.spans.KnifeURLSpan;
+import io.github.mthli.knife.spans.KnifeUnderlineSpan;
+
+/**
+ * Colors and sizes of the Knife spans, sizes in pixels. Immutable, so one instance can be shared
+ * by documents on any thread.
+ */
+public final class KnifeStyle {
+
+    public final int bulletColor;
+    public final int bulletRadius;
+    public final int bulletGap;
+    public final int linkColor;
+    public final boolean linkUnderline;
+    public final int quoteColor;
+    public final int quoteStripeWidth;
+    public final int quoteGap;
+
+    private KnifeStyle(Builder builder) {
+        bulletColor = builder.bulletColor;
+        bulletRadius = builder.bulletRadius;
+        bulletGap = builder.bulletGap;
+        linkColor = builder.linkColor;
+        linkUnderline = builder.linkUnderline;
+        quoteColor = builder.quoteColor;
+        quoteStripeWidth = builder.quoteStripeWidth;
+        quoteGap = builder.quoteGap;
+    }
+
+    Object createSpan(Class<?> spanClass, String url) {
+        if (spanClass == Knife.BOLD) return new KnifeBoldSpan();
+        if (spanClass == Knife.ITALIC) return new KnifeItalicSpan();
+        if (spanClass == Knife.UNDERLINE) return new KnifeUnderlineSpan();
+        if (spanClass == Knife.STRIKE) return new KnifeStrikethroughSpan();
+        if (spanClass == Knife.BULLET) return new KnifeBulletSpan(bulletColor, bulletRadius, bulletGap);
+        if (spanClass == Knife.QUOTE) return new KnifeQuoteSpan(quoteColor, quoteStripeWidth, quoteGap);
+        if (spanClass == Knife.URL) {
+            if (url == null || url.isEmpty()) {
+                throw new IllegalArgumentException("Use setLink() method to add links");
+            }
+            return new KnifeURLSpan(url, linkColor, linkUnderline);
+        }
+        throw new IllegalArgumentException("Unknown span type: " + spanClass.getSimpleName());
+    }
+
+    public static final class Builder {
+        private int bulletColor = Color.BLUE;
+        private int bulletRadius = 2;
+        private int bulletGap = 8;
+        private int linkColor = 0;
+        private boolean linkUnderline = true;
+        private int quoteColor = Color.BLUE;
+        private int quoteStripeWidth = 2;
+        private int quoteGap = 8;
+
+        public Builder bulletColor(int bulletColor) {
+            this.bulletColor = bulletColor;
+            return this;
+        }
+
+        public Builder bulletRadius(int bulletRadius) {
+            this.bulletRadius = bulletRadius;
+            return this;
+        }
+
+        public Builder bulletGap(int bulletGap) {
+            this.bulletGap = bulletGap;
+            return this;
+        }
+
+        public Builder linkColor(int linkColor) {
+            this.linkColor = linkColor;
+            return this;
+        }
+
+        public Builder linkUnderline(boolean linkUnderline) {
+            this.linkUnderline = linkUnderline;
+            return this;
+        }
+
+        public Builder quoteColor(int quoteColor) {
+            this.quoteColor = quoteColor;
+            return this;
+        }
+
+        public Builder quoteStripeWidth(int quoteStripeWidth) {
+            this.quoteStripeWidth = quoteStripeWidth;
+            return this;
+        }
+
+        public Builder quoteGap(int quoteGap) {
+            this.quoteGap = quoteGap;
+            return this;
+        }
+
+        public KnifeStyle build() {
+            return new KnifeStyle(this);
+        }
+    }
+
+}
@@ -22,15 +22,24 @@ package io.github.mthli.knife;
 
 import android.text.Editable;
 import android.text.Html;
-import android.text.Spannable;
-import android.text.Spanned;
-import android.text.style.BulletSpan;
-import android.text.style.StrikethroughSpan;
 
 import org.xml.sax.XMLReader;
 
+import java.util.ArrayDeque;
+
 class KnifeTagHandler implements Html.TagHandler {
 
+    private final KnifeParser.Ranges ranges;
+
+    // Start offsets of the tags still open. The converter only ever appends to the output,
+    // so an offset taken when a tag opens is still valid when it closes.
+    private final ArrayDeque<Integer> bullets = new ArrayDeque<>();
+    private final ArrayDeque<Integer> strikes = new ArrayDeque<>();
+
+    KnifeTagHandler(KnifeParser.Ranges ranges) {
+        this.ranges = ranges;
+    }
+
     @Override
     public void handleTag(boolean opening, String tag, Editable output, XMLReader xmlReader) {
         if (opening) {
@@ -38,56 +47,27 @@ class KnifeTagHandler implements Html.TagHandler {
                 if (output.length() > 0 && output.charAt(output.length() - 1) != '\n') {
                     output.append("\n");
                 }
-                start(output, new BulletSpan());
+                bullets.push(output.length());
             } else if (tag.equalsIgnoreCase("s")
                     || tag.equalsIgnoreCase("strike")
                     || tag.equalsIgnoreCase("del")) {
-                start(output, new StrikethroughSpan());
+                strikes.push(output.length());
             }
         } else {
             if (tag.equalsIgnoreCase("li")) {
                 if (output.length() > 0 && output.charAt(output.length() - 1) != '\n') {
                     output.append("\n");
                 }
-                end(output, BulletSpan.class, new BulletSpan());
+                if (!bullets.isEmpty()) {
+                    ranges.add(Knife.BULLET, bullets.pop(), output.length(), null);
+                }
             } else if (tag.equalsIgnoreCase("s")
                     || tag.equalsIgnoreCase("strike")
                     || tag.equalsIgnoreCase("del")) {
-                end(output, StrikethroughSpan.class, new StrikethroughSpan());
-            }
-        }
-    }
-
-    private void start(Editable output, Object mark) {
-        output.setSpan(mark, output.length(), output.length(), Spanned.SPAN_MARK_MARK);
-    }
-
-    private void end(Editable output, Class kind, Object... replaces) {
-        Object last = getLast(output, kind);
-        int start = output.getSpanStart(last);
-        int end = output.length();
-        output.removeSpan(last);
-
-        if (start != end) {
-            for (Object replace : replaces) {
-                output.setSpan(replace, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-        }
-    }
-
-    private static Object getLast(Editable text, Class kind) {
-        Object[] spans = text.getSpans(0, text.length(), kind);
-
-        if (spans.length == 0) {
-            return null;
-        } else {
-            for (int i = spans.length; i > 0; i--) {
-                if (text.getSpanFlags(spans[i - 1]) == Spannable.SPAN_MARK_MARK) {
-                    return spans[i - 1];
+                if (!strikes.isEmpty()) {
+                    ranges.add(Knife.STRIKE, strikes.pop(), output.length(), null);
                 }
             }
-
-            return null;
         }
     }
 
@@ -0,0 +1,206 @@
+package io.github.mthli.knife;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Looper;
+import android.os.Parcelable;
+import android.text.SpannableStringBuilder;
+import android.widget.EditText;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class KnifeAutosaveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // The edit of setHtml() is still waiting for the history when the autosave is attached
+    @Test
+    public void recoversHtmlSetBeforeAttachingOnce() throws IOException {
+        File directory = folder.newFolder();
+        EditText editText = newEditText();
+        Knife knife = new Knife(editText);
+        knife.setHtml("hello world");
+
+        KnifeAutosave autosave = new KnifeAutosave(directory);
+        knife.setAutosave(autosave);
+        idle();
+        knife.setAutosave(null);
+        autosave.close();
+
+        assertEquals("hello world", recover(directory));
+    }
+
+    @Test
+    public void reportsWriteFailureWithoutClosing() throws Exception {
+        // The checkpoint can't be written into a directory that doesn't exist
+        KnifeAutosave autosave = new KnifeAutosave(new File(folder.newFolder(), "missing"));
+        List<IOException> failures = new ArrayList<>();
+        autosave.setOnFailureListener(failures::add);
+
+        Knife knife = new Knife(newEditText());
+        knife.setAutosave(autosave);
+        for (int i = 0; i < 200 && failures.isEmpty(); i++) {
+            Thread.sleep(10);
+            idle();
+        }
+        assertEquals(1, failures.size());
+
+        knife.setAutosave(null);
+        assertThrows(IOException.class, autosave::close);
+    }
+
+    // A checksum only catches torn writes, a record can still be intact and not apply
+    @Test
+    public void stopsRecoveryAtLastGoodRecord() throws IOException {
+        File directory = folder.newFolder();
+        EditText editText = newEditText();
+        Knife knife = new Knife(editText);
+        KnifeAutosave autosave = new KnifeAutosave(directory);
+        knife.setAutosave(autosave);
+        knife.setHtml("hello");
+        idle();
+        editText.getText().append(" world");
+        idle();
+        knife.setAutosave(null);
+        autosave.close();
+
+        // Applies its first op and fails on the second
+        SpannableStringBuilder longer = new SpannableStringBuilder("some much longer text than hello world");
+        KnifeHistory history = KnifeHistoryTest.record(longer,
+                new KnifeHistory(new KnifeStyle.Builder().build(), 10, Long.MAX_VALUE));
+        longer.insert(0, "X");
+        longer.delete(30, 35);
+        appendRecord(new File(directory, "knife.journal"), Long.MAX_VALUE - 1,
+                history.commit(longer).pack());
+
+        editText = newEditText();
+        knife = new Knife(editText);
+        autosave = new KnifeAutosave(directory);
+        List<IOException> failures = new ArrayList<>();
+        autosave.setOnFailureListener(failures::add);
+        knife.setAutosave(autosave);
+        idle();
+        assertEquals("hello world", editText.getText().toString());
+        assertEquals(1, failures.size());
+
+        // Saving goes on from there
+        editText.getText().append("!");
+        idle();
+        knife.setAutosave(null);
+        autosave.close();
+        assertEquals("hello world!", recover(directory));
+    }
+
+    @Test
+    public void savesNothingOnceClosed() throws IOException {
+        File directory = folder.newFolder();
+        EditText editText = newEditText();
+        Knife knife = new Knife(editText);
+        KnifeAutosave autosave = new KnifeAutosave(directory);
+        knife.setAutosave(autosave);
+        knife.setHtml("saved");
+        idle();
+        autosave.close();
+
+        // Still attached
+        editText.getText().append(" not saved");
+        idle();
+        knife.setHtml("replaced");
+        autosave.close();
+        assertEquals("saved", recover(directory));
+    }
+
+    // Over the Binder limit the saved state would fail the whole Activity, the autosave has it
+    @Test
+    public void leavesLargeDocumentToAutosave() throws IOException {
+        File directory = folder.newFolder();
+        EditText editText = newEditText();
+        Knife knife = new Knife(editText);
+        KnifeAutosave autosave = new KnifeAutosave(directory);
+        knife.setAutosave(autosave);
+        knife.setHtml("small");
+        idle();
+        EditText restored = newEditText();
+        new Knife(restored).onRestoreInstanceState(knife.onSaveInstanceState());
+        assertEquals("small", restored.getText().toString());
+
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 300 * 1024) {
+            large.append("a long line of text ").append(large.length()).append("<br>");
+        }
+        knife.setHtml(large.toString());
+        idle();
+        String expected = editText.getText().toString();
+        Parcelable state = knife.onSaveInstanceState();
+        knife.setAutosave(null);
+        autosave.close();
+
+        restored = newEditText();
+        Knife next = new Knife(restored);
+        next.onRestoreInstanceState(state);
+        assertEquals("", restored.getText().toString());
+        autosave = new KnifeAutosave(directory);
+        next.setAutosave(autosave);
+        idle();
+        next.setAutosave(null);
+        autosave.close();
+        assertEquals(expected, restored.getText().toString());
+    }
+
+    private static void appendRecord(File journal, long seq, byte[] ops) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeLong(seq);
+        payload.writeBoolean(true);
+        payload.write(ops);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(journal, true))) {
+            out.writeInt(bytes.size());
+            out.writeInt((int) crc.getValue());
+            out.write(bytes.toByteArray());
+        }
+    }
+
+    private static String recover(File directory) throws IOException {
+        EditText editText = newEditText();
+        Knife knife = new Knife(editText);
+        KnifeAutosave autosave = new KnifeAutosave(directory);
+        knife.setAutosave(autosave);
+        idle();
+        knife.setAutosave(null);
+        autosave.close();
+        return editText.getText().toString();
+    }
+
+    private static EditText newEditText() {
+        return new EditText(RuntimeEnvironment.getApplication());
+    }
+
+    private static void idle() {
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofSeconds(1));
+    }
+
+}
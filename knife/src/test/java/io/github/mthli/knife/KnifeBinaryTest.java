@@ -0,0 +1,156 @@
+package io.github.mthli.knife;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.URLSpan;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class KnifeBinaryTest {
+
+    private static final int[] FLAGS = {
+            Spanned.SPAN_INCLUSIVE_INCLUSIVE,
+            Spanned.SPAN_INCLUSIVE_EXCLUSIVE,
+            Spanned.SPAN_EXCLUSIVE_INCLUSIVE,
+            Spanned.SPAN_EXCLUSIVE_EXCLUSIVE};
+
+    private final KnifeStyle style = new KnifeStyle.Builder().build();
+
+    @Test
+    public void roundTripsSpansAndText() throws IOException {
+        // UTF-8, then UTF-16 for the lone surrogates
+        for (String string : new String[] {"héllo 😀 world\nsecond line\n", "a\uD800b\nc\uDC00 \uDBFF"}) {
+            SpannableStringBuilder text = new SpannableStringBuilder(string);
+            int i = 0;
+            for (Class<?> type : Knife.TYPES) {
+                for (int flags : FLAGS) {
+                    int start = i % text.length();
+                    int end = Math.min(text.length(), start + 1 + i % 5);
+                    String url = type == Knife.URL ? "https://example.com/ü/" + i : null;
+                    text.setSpan(style.createSpan(type, url), start, end, flags);
+                    i++;
+                }
+            }
+            byte[] bytes = write(text);
+            String expected = describe(text);
+
+            assertEquals(expected, describe(KnifeBinary.read(new ByteArrayInputStream(bytes), style)));
+
+            // Read from an offset, and from a buffer without an array
+            ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 3);
+            buffer.position(3);
+            buffer.put(bytes).position(3);
+            assertEquals(expected, describe(KnifeBinary.read(buffer, style)));
+            assertEquals(3, buffer.position());
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+            direct.put(bytes).flip();
+            assertEquals(expected, describe(KnifeBinary.read(direct, style)));
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedDocument() throws IOException {
+        SpannableStringBuilder text = new SpannableStringBuilder("some text\n");
+        text.setSpan(style.createSpan(Knife.URL, "https://example.com"), 0, 4,
+                Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+        byte[] bytes = write(text);
+        for (int length = 0; length < bytes.length; length++) {
+            byte[] truncated = Arrays.copyOf(bytes, length);
+            assertThrows("length " + length, IOException.class,
+                    () -> KnifeBinary.read(ByteBuffer.wrap(truncated), style));
+        }
+    }
+
+    @Test
+    public void rejectsCorruptDocument() throws IOException {
+        int bold = Knife.typeIndex(Knife.BOLD);
+        int flags = Spanned.SPAN_EXCLUSIVE_INCLUSIVE;
+        assertEquals("ab\ncd\n" + Knife.BOLD.getSimpleName() + " 1-4 flags " + flags,
+                describe(KnifeBinary.read(ByteBuffer.wrap(document(0x4b4e4642, bold, 1, 3, flags)), style)));
+
+        assertRejected(document(0x4b4e4643, bold, 1, 3, flags));
+        assertRejected(document(0x4b4e4642, Knife.TYPES.length, 1, 3, flags));
+        assertRejected(document(0x4b4e4642, bold, 4, 2, flags));
+        assertRejected(document(0x4b4e4642, bold, -1, 2, flags));
+        // Off a line boundary
+        assertRejected(document(0x4b4e4642, bold, 1, 1, Spanned.SPAN_PARAGRAPH));
+    }
+
+    @Test
+    public void ignoresFlagsKnifeDoesNotWrite() throws IOException {
+        int flags = Spanned.SPAN_EXCLUSIVE_EXCLUSIVE | Spanned.SPAN_INTERMEDIATE | Spanned.SPAN_COMPOSING
+                | 3 << Spanned.SPAN_USER_SHIFT;
+        Spanned text = KnifeBinary.read(
+                ByteBuffer.wrap(document(0x4b4e4642, Knife.typeIndex(Knife.QUOTE), 0, 2, flags)), style);
+        Object quote = text.getSpans(0, text.length(), Knife.QUOTE)[0];
+        assertEquals(Spanned.SPAN_EXCLUSIVE_EXCLUSIVE, text.getSpanFlags(quote));
+    }
+
+    private void assertRejected(byte[] bytes) {
+        assertThrows(IOException.class, () -> KnifeBinary.read(ByteBuffer.wrap(bytes), style));
+    }
+
+    private static byte[] write(Spanned text) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        KnifeBinary.write(text, out);
+        return out.toByteArray();
+    }
+
+    // "ab\ncd" with one span, the small values fit in single byte varints
+    private static byte[] document(int magic, int type, int start, int length, int flags)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(magic);
+        out.writeByte(1);
+        out.writeByte(5);
+        out.writeByte(5 << 1);
+        out.write("ab\ncd".getBytes(StandardCharsets.UTF_8));
+        out.writeByte(1);
+        out.writeByte(type);
+        out.writeByte(start << 1 ^ start >> 31);
+        out.writeByte(length);
+        writeVarint(out, flags);
+        return bytes.toByteArray();
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static String describe(Spanned text) {
+        StringBuilder out = new StringBuilder(text);
+        for (Object span : text.getSpans(0, text.length(), Object.class)) {
+            if (Knife.typeOf(span) == null) continue;
+            out.append('\n').append(span.getClass().getSimpleName());
+            if (span instanceof URLSpan) {
+                out.append(' ').append(((URLSpan) span).getURL());
+            }
+            out.append(' ').append(text.getSpanStart(span))
+                    .append('-').append(text.getSpanEnd(span))
+                    .append(" flags ").append(text.getSpanFlags(span));
+        }
+        return out.toString();
+    }
+
+}
@@ -0,0 +1,135 @@
+package io.github.mthli.knife;
+
+import static org.junit.Assert.assertEquals;
+
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class KnifeDocumentTest {
+
+    private static final int[] FLAGS = {
+            Spanned.SPAN_INCLUSIVE_INCLUSIVE,
+            Spanned.SPAN_INCLUSIVE_EXCLUSIVE,
+            Spanned.SPAN_EXCLUSIVE_INCLUSIVE,
+            Spanned.SPAN_EXCLUSIVE_EXCLUSIVE};
+
+    private final KnifeStyle style = new KnifeStyle.Builder().build();
+
+    // Selections mostly start and end on span edges, where the one sweep has to agree with the
+    // spans looked up one format at a time
+    @Test
+    public void formatStateMatchesPerSpanCheck() {
+        for (int seed = 0; seed < 300; seed++) {
+            Random random = new Random(seed);
+            SpannableStringBuilder text = new SpannableStringBuilder("first line\n\nthird\nfourth line\n");
+            for (int i = 0; i < 10; i++) {
+                Class<?> type = Knife.TYPES[random.nextInt(Knife.TYPES.length)];
+                int start = random.nextInt(text.length() + 1);
+                int end = start + random.nextInt(Math.min(text.length() - start, 12) + 1);
+                int flags = FLAGS[random.nextInt(FLAGS.length)];
+                if (type == Knife.BULLET || type == Knife.QUOTE) {
+                    // Mostly whole lines, like Knife leaves them
+                    if (random.nextInt(4) != 0) {
+                        start = KnifeLineIndex.findLineStart(text, start);
+                        end = KnifeLineIndex.findLineEnd(text, start);
+                    }
+                    flags = Spanned.SPAN_EXCLUSIVE_EXCLUSIVE;
+                    if (start == end) continue;
+                }
+                text.setSpan(style.createSpan(type, type == Knife.URL ? "https://example.com" : null),
+                        start, end, flags);
+            }
+            KnifeDocument document = new KnifeDocument(text, style);
+
+            List<Integer> edges = new ArrayList<>();
+            for (Object span : text.getSpans(0, text.length(), Object.class)) {
+                if (Knife.typeOf(span) == null) continue;
+                edges.add(text.getSpanStart(span));
+                edges.add(text.getSpanEnd(span));
+            }
+            edges.add(0);
+            edges.add(text.length());
+
+            for (int q = 0; q < 40; q++) {
+                int start = random.nextBoolean()
+                        ? edges.get(random.nextInt(edges.size()))
+                        : random.nextInt(text.length() + 1);
+                int end = random.nextInt(3) == 0 ? start
+                        : random.nextBoolean() ? edges.get(random.nextInt(edges.size()))
+                        : random.nextInt(text.length() + 1);
+                if (end < start) {
+                    int swap = start;
+                    start = end;
+                    end = swap;
+                }
+
+                int state = document.getFormatState(start, end);
+                for (Class<?> type : Knife.TYPES) {
+                    String where = "seed " + seed + " " + type.getSimpleName()
+                            + " [" + start + ", " + end + "]";
+                    boolean expected = type == Knife.BULLET || type == Knife.QUOTE
+                            ? isFullOfParagraphs(text, type, start, end)
+                            : isFullySpanned(text, type, start, end);
+                    assertEquals(where, expected, (state & Knife.formatOf(type)) != 0);
+                    assertEquals(where, expected, document.has(type, start, end));
+                }
+            }
+        }
+    }
+
+    // Character by character: every one in the range is covered, or for an empty range, text typed
+    // there would be
+    private static boolean isFullySpanned(Spanned text, Class<?> type, int start, int end) {
+        Object[] spans = text.getSpans(start, end, type);
+        if (start == end) {
+            for (Object span : spans) {
+                int s = text.getSpanStart(span);
+                int e = text.getSpanEnd(span);
+                if ((start > s && end < e)
+                        || (end == e && text.getSpanFlags(span) == Spanned.SPAN_EXCLUSIVE_INCLUSIVE)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        for (int pos = start; pos < end; pos++) {
+            boolean found = false;
+            for (Object span : spans) {
+                if (pos >= text.getSpanStart(span) && pos < text.getSpanEnd(span)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) return false;
+        }
+        return true;
+    }
+
+    // Line by line: every line the range touches has a span of the type
+    private static boolean isFullOfParagraphs(Spanned text, Class<?> type, int start, int end) {
+        start = KnifeLineIndex.findLineStart(text, start);
+        end = KnifeLineIndex.findLineEnd(text, end);
+        if (start == end) return false;
+
+        int lineStart = start;
+        while (lineStart <= end) {
+            int lineEnd = KnifeLineIndex.findLineEnd(text, lineStart);
+            if (text.getSpans(lineStart, lineEnd, type).length == 0) return false;
+            lineStart = lineEnd + 1;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,246 @@
+package io.github.mthli.knife;
+
+import static org.junit.Assert.assertEquals;
+
+import android.text.Editable;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextWatcher;
+import android.text.style.URLSpan;
+import android.text.style.UnderlineSpan;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays the same random edits on a {@link KnifeEditable} and on a plain SpannableStringBuilder,
+ * and checks that every span query of the two agrees, result order included.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class KnifeEditableTest {
+
+    private static final int[] FLAGS = {
+            Spanned.SPAN_INCLUSIVE_INCLUSIVE,
+            Spanned.SPAN_INCLUSIVE_EXCLUSIVE,
+            Spanned.SPAN_EXCLUSIVE_INCLUSIVE,
+            Spanned.SPAN_EXCLUSIVE_EXCLUSIVE};
+
+    private final KnifeStyle style = new KnifeStyle.Builder().build();
+
+    @Test
+    public void matchesSpannableStringBuilder() {
+        for (int seed = 0; seed < 200; seed++) {
+            Random random = new Random(seed);
+            SpannableStringBuilder source = new SpannableStringBuilder("hello world\nsecond line\nthird");
+            addSpans(source, random, 5);
+
+            // Half of the runs with a gap so small that most edits regrow it
+            KnifeEditable editable = seed % 2 == 0
+                    ? new KnifeEditable(source)
+                    : new KnifeEditable(source, 1 + random.nextInt(8));
+            SpannableStringBuilder expected = new SpannableStringBuilder(source);
+            Recorder recorder = new Recorder(editable);
+            KnifeHistory replayer = new KnifeHistory(style, 100, Long.MAX_VALUE);
+
+            for (int step = 0; step < 200; step++) {
+                String where = "seed " + seed + " step " + step;
+                edit(editable, expected, recorder, replayer, random);
+                assertEquals(where, expected.toString(), editable.toString());
+                assertSameSpans(where, expected, editable, random);
+            }
+        }
+    }
+
+    private void edit(KnifeEditable editable, SpannableStringBuilder expected, Recorder recorder,
+            KnifeHistory replayer, Random random) {
+        int length = editable.length();
+        int start = random.nextInt(length + 1);
+        int end = start + random.nextInt(Math.min(length - start, 20) + 1);
+        int op = random.nextInt(100);
+
+        if (op < 25) {
+            String inserted = random.nextInt(5) == 0 ? "\n" : "ab".substring(random.nextInt(2));
+            editable.insert(start, inserted);
+            expected.insert(start, inserted);
+        } else if (op < 35) {
+            editable.delete(start, end);
+            expected.delete(start, end);
+        } else if (op < 42) {
+            editable.replace(start, end, "xyz");
+            expected.replace(start, end, "xyz");
+        } else if (op < 50) {
+            // A paste carrying Knife spans and a span of another type
+            SpannableStringBuilder paste = new SpannableStringBuilder("pasted text\nmore");
+            addSpans(paste, random, 3);
+            int pasteStart = random.nextInt(paste.length());
+            int pasteEnd = pasteStart + random.nextInt(paste.length() - pasteStart + 1);
+            editable.replace(start, end, paste, pasteStart, pasteEnd);
+            expected.replace(start, end, paste, pasteStart, pasteEnd);
+        } else if (op < 65) {
+            Object span = newSpan(random);
+            int flags = FLAGS[random.nextInt(FLAGS.length)];
+            editable.setSpan(span, start, end, flags);
+            expected.setSpan(span, start, end, flags);
+        } else if (op < 75) {
+            List<Object> spans = ownSpans(editable);
+            if (spans.isEmpty()) return;
+            int i = random.nextInt(spans.size());
+            editable.setSpan(spans.get(i), start, end, editable.getSpanFlags(spans.get(i)));
+            Object moved = ownSpans(expected).get(i);
+            expected.setSpan(moved, start, end, expected.getSpanFlags(moved));
+        } else if (op < 83) {
+            List<Object> spans = ownSpans(editable);
+            if (spans.isEmpty()) return;
+            int i = random.nextInt(spans.size());
+            editable.removeSpan(spans.get(i));
+            expected.removeSpan(ownSpans(expected).get(i));
+        } else if (op < 84) {
+            editable.clearSpans();
+            expected.clearSpans();
+            recorder.attach();
+            recorder.history.clear();
+        } else if (op < 92) {
+            // Undo and redo recreate spans, replayed the same way on the expected text
+            KnifeHistory.Transaction transaction = recorder.history.undo(editable);
+            if (transaction != null) replayer.replay(expected, transaction.pack(), false);
+        } else if (op < 99) {
+            KnifeHistory.Transaction transaction = recorder.history.redo(editable);
+            if (transaction != null) replayer.replay(expected, transaction.pack(), true);
+        } else {
+            editable.replace(0, length, "fresh\ntext");
+            expected.replace(0, length, "fresh\ntext");
+        }
+        recorder.history.commit(editable);
+    }
+
+    private void assertSameSpans(String where, Spanned expected, Spanned actual, Random random) {
+        int length = expected.length();
+        List<Class<?>> kinds = new ArrayList<>();
+        for (Class<?> type : Knife.TYPES) {
+            kinds.add(type);
+        }
+        kinds.add(UnderlineSpan.class);
+        kinds.add(Object.class);
+
+        for (int q = 0; q < 6; q++) {
+            int start = q == 0 ? 0 : random.nextInt(length + 1);
+            int end = q == 0 ? length : q == 1 ? start : start + random.nextInt(length - start + 1);
+            for (Class<?> kind : kinds) {
+                String query = where + " " + kind.getSimpleName() + " [" + start + ", " + end + "]";
+                assertEquals(query, describe(expected, expected.getSpans(start, end, kind)),
+                        describe(actual, actual.getSpans(start, end, kind)));
+                assertEquals(query, expected.nextSpanTransition(start, length, kind),
+                        actual.nextSpanTransition(start, length, kind));
+            }
+        }
+    }
+
+    // The Knife spans of the framework's own lookup, what the index has to reproduce
+    private static void assertIndexed(String where, Spanned text) {
+        for (Class<?> type : Knife.TYPES) {
+            List<Object> expected = new ArrayList<>();
+            for (Object span : text.getSpans(0, text.length(), Object.class)) {
+                if (type.isInstance(span)) expected.add(span);
+            }
+            Object[] actual = text.getSpans(0, text.length(), type);
+            assertEquals(where + " " + type.getSimpleName(), describe(text, expected.toArray()),
+                    describe(text, actual));
+        }
+    }
+
+    private static String describe(Spanned text, Object[] spans) {
+        StringBuilder out = new StringBuilder();
+        for (Object span : spans) {
+            if (span instanceof TextWatcher || span instanceof SpanWatcher) continue;
+            out.append(span.getClass().getSimpleName());
+            if (span instanceof URLSpan) {
+                out.append(' ').append(((URLSpan) span).getURL());
+            }
+            out.append(' ').append(text.getSpanStart(span))
+                    .append('-').append(text.getSpanEnd(span))
+                    .append(" flags ").append(text.getSpanFlags(span))
+                    .append('\n');
+        }
+        return out.toString();
+    }
+
+    // Knife spans and the framework's UnderlineSpan, in the order of the text
+    private static List<Object> ownSpans(Spanned text) {
+        List<Object> spans = new ArrayList<>();
+        for (Object span : text.getSpans(0, text.length(), Object.class)) {
+            if (span instanceof UnderlineSpan || Knife.typeOf(span) != null) spans.add(span);
+        }
+        return spans;
+    }
+
+    private void addSpans(Spannable text, Random random, int count) {
+        for (int i = 0; i < count; i++) {
+            int start = random.nextInt(text.length());
+            int end = start + random.nextInt(text.length() - start + 1);
+            text.setSpan(newSpan(random), start, end, FLAGS[random.nextInt(FLAGS.length)]);
+        }
+    }
+
+    private Object newSpan(Random random) {
+        if (random.nextInt(8) == 0) {
+            return new UnderlineSpan();
+        }
+        Class<?> type = Knife.TYPES[random.nextInt(Knife.TYPES.length)];
+        return style.createSpan(type, type == Knife.URL ? "https://example.com/" + random.nextInt(3) : null);
+    }
+
+    // Records the undo history like Knife does, and queries the index in the middle of every edit
+    private static final class Recorder implements TextWatcher, SpanWatcher {
+        final KnifeHistory history = new KnifeHistory(new KnifeStyle.Builder().build(), 100, Long.MAX_VALUE);
+        private final KnifeEditable text;
+
+        Recorder(KnifeEditable text) {
+            this.text = text;
+            attach();
+        }
+
+        void attach() {
+            text.setSpan(this, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        }
+
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            if (!history.isReplaying()) history.beforeTextChanged(text, start, count);
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            assertIndexed("onTextChanged", text);
+            if (!history.isReplaying()) history.onTextChanged(text, start, count);
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            assertIndexed("afterTextChanged", text);
+        }
+
+        @Override
+        public void onSpanAdded(Spannable s, Object what, int start, int end) {
+            history.onSpanAdded(text, what, start, end);
+        }
+
+        @Override
+        public void onSpanRemoved(Spannable s, Object what, int start, int end) {
+            history.onSpanRemoved(text, what, start, end);
+        }
+
+        @Override
+        public void onSpanChanged(Spannable s, Object what, int ostart, int oend, int nstart,
+                int nend) {}
+    }
+
+}
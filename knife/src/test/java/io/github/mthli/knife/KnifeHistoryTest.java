@@ -0,0 +1,299 @@
+package io.github.mthli.knife;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.text.Editable;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextWatcher;
+import android.text.style.URLSpan;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class KnifeHistoryTest {
+
+    private static final String HTML = "<b>start</b> text<br><ul><li>one</li><li>two</li></ul>"
+            + "<blockquote>quote</blockquote>plain <a href=\"https://example.com/0\">link</a>";
+    private static final String[] INSERTS = {"a", "word ", "\n", "x\ny", "é😀"};
+    private static final Class<?>[] TYPES = {
+            Knife.BOLD, Knife.ITALIC, Knife.UNDERLINE, Knife.STRIKE, Knife.BULLET, Knife.QUOTE};
+
+    private final KnifeStyle style = new KnifeStyle.Builder().build();
+
+    @Test
+    public void undoAndRedoRestoreEveryStep() {
+        for (int seed = 0; seed < 50; seed++) {
+            Random random = new Random(seed);
+            Editable text = (Editable) KnifeParser.fromHtml(HTML, style, false);
+            KnifeDocument document = new KnifeDocument(text, style);
+            KnifeHistory history = record(text, new KnifeHistory(style, 1000, Long.MAX_VALUE));
+
+            List<String> states = new ArrayList<>();
+            states.add(describe(text));
+            for (int step = 0; step < 40; step++) {
+                edit(document, random);
+                if (history.commit(text) != null) {
+                    states.add(describe(text));
+                }
+            }
+
+            for (int i = states.size() - 2; i >= 0; i--) {
+                assertNotNull(history.undo(text));
+                assertEquals("seed " + seed + " undo to " + i, states.get(i), describe(text));
+            }
+            assertNull(history.undo(text));
+            for (int i = 1; i < states.size(); i++) {
+                assertNotNull(history.redo(text));
+                assertEquals("seed " + seed + " redo to " + i, states.get(i), describe(text));
+            }
+            assertNull(history.redo(text));
+        }
+    }
+
+    // The quote goes away in the middle of the replace, where span removals are not recorded
+    @Test
+    public void undoRestoresSpanEmptiedByReplace() {
+        SpannableStringBuilder text = new SpannableStringBuilder("x abc y");
+        text.setSpan(style.createSpan(Knife.QUOTE, null), 2, 5, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        text.setSpan(style.createSpan(Knife.URL, "https://example.com"), 2, 5,
+                Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+        KnifeHistory history = record(text, new KnifeHistory(style, 100, Long.MAX_VALUE));
+        String before = describe(text);
+
+        text.replace(1, 6, "Q");
+        history.commit(text);
+        assertEquals(0, text.getSpans(0, text.length(), Knife.QUOTE).length);
+        String after = describe(text);
+
+        history.undo(text);
+        assertEquals(before, describe(text));
+        history.redo(text);
+        assertEquals(after, describe(text));
+    }
+
+    // Far over the budget before compaction, so every entry but the newest has to be deflated
+    @Test
+    public void compactedEntriesStillUndo() {
+        long maxBytes = 16 * 1024;
+        SpannableStringBuilder text = new SpannableStringBuilder("start");
+        KnifeDocument document = new KnifeDocument(text, style);
+        KnifeHistory history = record(text, new KnifeHistory(style, 1000, maxBytes));
+
+        List<String> states = new ArrayList<>();
+        states.add(describe(text));
+        for (int step = 0; step < 20; step++) {
+            int start = text.length();
+            text.append(repeat((char) ('a' + step), 1000));
+            document.toggle(TYPES[step % TYPES.length], start, start + 500);
+            history.commit(text);
+            states.add(describe(text));
+            assertTrue("step " + step, history.getRetainedBytes() <= maxBytes);
+        }
+
+        for (int i = states.size() - 2; i >= 0; i--) {
+            assertNotNull(history.undo(text));
+            assertEquals("undo to " + i, states.get(i), describe(text));
+        }
+        assertNull(history.undo(text));
+        for (int i = 1; i < states.size(); i++) {
+            assertNotNull(history.redo(text));
+            assertEquals("redo to " + i, states.get(i), describe(text));
+        }
+    }
+
+    @Test
+    public void evictsOldestEntriesOverBudget() {
+        long maxBytes = 8 * 1024;
+        Random random = new Random(3);
+        SpannableStringBuilder text = new SpannableStringBuilder("start");
+        KnifeHistory history = record(text, new KnifeHistory(style, 1000, maxBytes));
+
+        List<String> states = new ArrayList<>();
+        states.add(describe(text));
+        for (int step = 0; step < 20; step++) {
+            // Random letters deflate too little to fit
+            char[] inserted = new char[1000];
+            for (int i = 0; i < inserted.length; i++) {
+                inserted[i] = (char) ('a' + random.nextInt(26));
+            }
+            text.append(new String(inserted));
+            history.commit(text);
+            states.add(describe(text));
+            assertTrue("step " + step, history.getRetainedBytes() <= maxBytes);
+        }
+
+        int undone = 0;
+        while (history.undo(text) != null) {
+            undone++;
+            assertEquals("undo " + undone, states.get(states.size() - 1 - undone), describe(text));
+        }
+        assertTrue("undone " + undone, undone > 0 && undone < 20);
+        for (int i = undone - 1; i >= 0; i--) {
+            assertNotNull(history.redo(text));
+            assertEquals("redo " + i, states.get(states.size() - 1 - i), describe(text));
+        }
+    }
+
+    @Test
+    public void evictsOldestEntriesOverSize() {
+        SpannableStringBuilder text = new SpannableStringBuilder("start");
+        KnifeHistory history = record(text, new KnifeHistory(style, 5, Long.MAX_VALUE));
+
+        List<String> states = new ArrayList<>();
+        states.add(describe(text));
+        for (int step = 0; step < 8; step++) {
+            text.append(String.valueOf(step));
+            history.commit(text);
+            states.add(describe(text));
+        }
+
+        for (int i = states.size() - 2; i >= states.size() - 6; i--) {
+            assertNotNull(history.undo(text));
+            assertEquals("undo to " + i, states.get(i), describe(text));
+        }
+        assertNull(history.undo(text));
+    }
+
+    @Test
+    public void restoredStateUndoes() {
+        Random random = new Random(7);
+        Editable text = (Editable) KnifeParser.fromHtml(HTML, style, false);
+        KnifeDocument document = new KnifeDocument(text, style);
+        KnifeHistory history = record(text, new KnifeHistory(style, 1000, Long.MAX_VALUE));
+
+        List<String> states = new ArrayList<>();
+        states.add(describe(text));
+        for (int step = 0; step < 30; step++) {
+            edit(document, random);
+            if (history.commit(text) != null) {
+                states.add(describe(text));
+            }
+        }
+        // A redo step, which isn't saved
+        history.undo(text);
+        states.remove(states.size() - 1);
+
+        KnifeHistory restored = new KnifeHistory(style, 1000, Long.MAX_VALUE);
+        restored.restoreState(history.saveState(Long.MAX_VALUE));
+        for (int i = states.size() - 2; i >= 0; i--) {
+            assertNotNull(restored.undo(text));
+            assertEquals("undo to " + i, states.get(i), describe(text));
+        }
+        assertNull(restored.undo(text));
+        for (int i = 1; i < states.size(); i++) {
+            assertNotNull(restored.redo(text));
+            assertEquals("redo to " + i, states.get(i), describe(text));
+        }
+        assertNull(restored.redo(text));
+
+        // Only the newest steps that fit
+        restored.restoreState(history.saveState(history.saveState(Long.MAX_VALUE).length / 2));
+        int undone = 0;
+        while (restored.undo(text) != null) {
+            undone++;
+            assertEquals("limited undo " + undone, states.get(states.size() - 1 - undone), describe(text));
+        }
+        assertTrue("undone " + undone, undone > 0 && undone < states.size() - 1);
+    }
+
+    private void edit(KnifeDocument document, Random random) {
+        Editable text = (Editable) document.getText();
+        int length = text.length();
+        int start = random.nextInt(length + 1);
+        int end = start + random.nextInt(Math.min(length - start, 12) + 1);
+        switch (random.nextInt(5)) {
+            case 0:
+                text.replace(start, end, INSERTS[random.nextInt(INSERTS.length)]);
+                break;
+            case 1:
+                text.delete(start, end);
+                break;
+            case 2:
+            case 3:
+                document.toggle(TYPES[random.nextInt(TYPES.length)], start, end);
+                break;
+            default:
+                if (end > start) document.setLink("https://example.com/" + random.nextInt(3), start, end);
+                break;
+        }
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    // Text and Knife spans, in no particular order since undo creates the spans again
+    static String describe(Spanned text) {
+        List<String> spans = new ArrayList<>();
+        for (Object span : text.getSpans(0, text.length(), Object.class)) {
+            Class<?> type = Knife.typeOf(span);
+            if (type == null) continue;
+            spans.add(type.getSimpleName()
+                    + (span instanceof URLSpan ? " " + ((URLSpan) span).getURL() : "")
+                    + " " + text.getSpanStart(span) + "-" + text.getSpanEnd(span)
+                    + " flags " + text.getSpanFlags(span));
+        }
+        Collections.sort(spans);
+        return text + "\n" + String.join("\n", spans);
+    }
+
+    // Feeds the history from the text like Knife does from its editor
+    static KnifeHistory record(Spannable text, KnifeHistory history) {
+        text.setSpan(new Recorder(history), 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        return history;
+    }
+
+    private static final class Recorder implements TextWatcher, SpanWatcher {
+        private final KnifeHistory history;
+
+        Recorder(KnifeHistory history) {
+            this.history = history;
+        }
+
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            history.beforeTextChanged((Spanned) s, start, count);
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            history.onTextChanged((Spanned) s, start, count);
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {}
+
+        @Override
+        public void onSpanAdded(Spannable text, Object what, int start, int end) {
+            history.onSpanAdded(text, what, start, end);
+        }
+
+        @Override
+        public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+            history.onSpanRemoved(text, what, start, end);
+        }
+
+        @Override
+        public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart,
+                int nend) {}
+    }
+
+}
@@ -0,0 +1,162 @@
+package io.github.mthli.knife;
+
+import static org.junit.Assert.assertEquals;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Looper;
+import android.text.Editable;
+import android.text.Spanned;
+import android.widget.EditText;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Edits an editor at random and checks after each step that the HTML put together from the cached
+ * paragraphs is the HTML of the whole text serialized from scratch.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class KnifeHtmlCacheTest {
+
+    private static final String HTML = "<b>start</b> text<br><ul><li>one</li><li>two</li></ul>"
+            + "<blockquote>quote</blockquote>plain <a href=\"https://example.com/0\">link</a><br><br>end";
+    private static final String[] INSERTS = {
+            "a", "b<c&", "\n", "x\ny", "hi  there\n\n", "é😀", "some words ", "\n\n"};
+    private static final Class<?>[] TYPES = {
+            Knife.BOLD, Knife.ITALIC, Knife.UNDERLINE, Knife.STRIKE, Knife.BULLET, Knife.QUOTE};
+
+    @Test
+    public void cachedHtmlMatchesUncached() throws IOException {
+        for (int seed = 0; seed < 60; seed++) {
+            Random random = new Random(seed);
+            EditText editText = new EditText(RuntimeEnvironment.getApplication());
+            Knife knife = new Knife(editText);
+            knife.setHtml(HTML);
+            idle();
+
+            for (int step = 0; step < 150; step++) {
+                int op = edit(knife, editText, random);
+                // Changes pile up between exports now and then
+                if (random.nextBoolean()) idle();
+                if (random.nextInt(3) == 0) continue;
+
+                int option = random.nextInt(4) == 0 ? Knife.TO_HTML_RAW_UNICODE : 0;
+                String where = "seed " + seed + " step " + step + " op " + op;
+                assertEquals(where, KnifeParser.toHtml(editText.getText(), option), knife.getHtml(option));
+            }
+        }
+    }
+
+    // An empty quote span left on a blank line used to wrap everything up to the end of the text,
+    // while the cached lines after it stayed plain
+    @Test
+    public void emptyParagraphSpanFormatsNothing() {
+        EditText editText = new EditText(RuntimeEnvironment.getApplication());
+        Knife knife = new Knife(editText);
+        knife.setHtml("<ul><li>one</li></ul><blockquote>quote</blockquote>plain<br><br>end");
+        idle();
+        knife.getHtml();
+
+        Editable text = editText.getText();
+        Object quote = text.getSpans(0, text.length(), Knife.QUOTE)[0];
+        int blankLine = text.toString().indexOf("\n\n") + 1;
+        text.setSpan(quote, blankLine, blankLine, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        String html = knife.getHtml();
+        assertEquals(KnifeParser.toHtml(text, 0), html);
+
+        text.removeSpan(quote);
+        assertEquals(KnifeParser.toHtml(text, 0), html);
+    }
+
+    private static int edit(Knife knife, EditText editText, Random random) throws IOException {
+        Editable text = editText.getText();
+        int length = text.length();
+        int start = random.nextInt(length + 1);
+        // Mostly within a line or two, sometimes across many
+        int end = start + random.nextInt(Math.min(random.nextInt(8) == 0 ? 200 : 15, length - start) + 1);
+        int op = random.nextInt(12);
+
+        switch (op) {
+            case 0:
+            case 1:
+            case 2:
+                text.replace(start, end, INSERTS[random.nextInt(INSERTS.length)]);
+                break;
+            case 3:
+                text.delete(start, end);
+                break;
+            case 4:
+                knife.toggle(TYPES[random.nextInt(TYPES.length)], start, end);
+                break;
+            case 5:
+                // Often over an existing link, changing its URL
+                if (end > start) knife.setLink("https://example.com/" + random.nextInt(3), start, end);
+                break;
+            case 6:
+                if (random.nextBoolean()) knife.undo();
+                else knife.redo();
+                break;
+            case 7:
+                knife.batch(() -> {
+                    knife.toggle(Knife.BOLD, start, end);
+                    editText.getText().insert(start, "\nz");
+                    knife.toggle(Knife.BULLET, start, Math.min(end, editText.length()));
+                });
+                break;
+            case 8: {
+                // A span moved or grown past the lines it covered, without going through Knife
+                List<Object> spans = knifeSpans(text);
+                if (spans.isEmpty()) break;
+                Object span = spans.get(random.nextInt(spans.size()));
+                int spanStart = Math.min(text.getSpanStart(span), start);
+                text.setSpan(span, spanStart, Math.max(spanStart, end), text.getSpanFlags(span));
+                break;
+            }
+            case 9: {
+                List<Object> spans = knifeSpans(text);
+                if (!spans.isEmpty()) text.removeSpan(spans.get(random.nextInt(spans.size())));
+                break;
+            }
+            case 10:
+                knife.setHtmlAsync(random.nextBoolean() ? HTML : "<i>other</i><br>document",
+                        Runnable::run, null);
+                idle();
+                break;
+            default: {
+                EditText other = new EditText(RuntimeEnvironment.getApplication());
+                Knife source = new Knife(other);
+                source.setHtml(random.nextBoolean() ? HTML : "<u>binary</u><br><ul><li>item</li></ul>");
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                source.writeTo(bytes);
+                knife.readFrom(new ByteArrayInputStream(bytes.toByteArray()));
+                break;
+            }
+        }
+        return op;
+    }
+
+    private static List<Object> knifeSpans(Editable text) {
+        List<Object> spans = new ArrayList<>();
+        for (Object span : text.getSpans(0, text.length(), Object.class)) {
+            if (Knife.typeOf(span) != null) spans.add(span);
+        }
+        return spans;
+    }
+
+    private static void idle() {
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofSeconds(1));
+    }
+
+}
@@ -0,0 +1,67 @@
+package io.github.mthli.knife;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class KnifeLineIndexTest {
+
+    private static final String[] INSERTS = {
+            "", "a", "\n", "ab\ncd", "\n\n\n", "line\nline\nline\n", "no break"};
+
+    @Test
+    public void matchesLinearScan() {
+        for (int seed = 0; seed < 200; seed++) {
+            Random random = new Random(seed);
+            StringBuilder text = new StringBuilder("first\nsecond\n\nfourth");
+            KnifeLineIndex index = new KnifeLineIndex();
+            index.size(text);
+
+            for (int step = 0; step < 100; step++) {
+                int length = text.length();
+                int start = random.nextInt(length + 1);
+                int end = start + random.nextInt(Math.min(length - start, 30) + 1);
+                String inserted = INSERTS[random.nextInt(INSERTS.length)];
+                int op = random.nextInt(20);
+                if (op == 0) {
+                    start = 0;
+                    end = length;
+                    inserted = "";
+                } else if (op == 1) {
+                    // More breaks than the buffer starts with
+                    char[] breaks = new char[1 + random.nextInt(40)];
+                    Arrays.fill(breaks, '\n');
+                    inserted = new String(breaks);
+                }
+
+                text.replace(start, end, inserted);
+                index.onTextChanged(text, start, end - start, inserted.length());
+                assertSameLines("seed " + seed + " step " + step, text, index);
+            }
+        }
+    }
+
+    private static void assertSameLines(String where, CharSequence text, KnifeLineIndex index) {
+        int length = text.length();
+        int breaks = 0;
+        for (int pos = 0; pos <= length; pos++) {
+            String at = where + " at " + pos;
+            assertEquals(at, KnifeLineIndex.findLineStart(text, pos), index.lineStart(text, pos));
+            assertEquals(at, KnifeLineIndex.findLineEnd(text, pos), index.lineEnd(text, pos));
+            assertEquals(at, breaks, index.lineOf(text, pos));
+            if (pos < length && text.charAt(pos) == '\n') {
+                assertEquals(at, pos, index.get(text, breaks));
+                breaks++;
+            }
+        }
+        assertEquals(where, breaks, index.size(text));
+
+        // Clamped to the text
+        assertEquals(where, 0, index.lineStart(text, -1));
+        assertEquals(where, length, index.lineEnd(text, length + 1));
+    }
+
+}
@@ -0,0 +1,352 @@
+package io.github.mthli.knife;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Typeface;
+import android.text.Editable;
+import android.text.Html;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.BulletSpan;
+import android.text.style.CharacterStyle;
+import android.text.style.QuoteSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.URLSpan;
+import android.text.style.UnderlineSpan;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.xml.sax.XMLReader;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class KnifeParserTest {
+
+    private static final Class<?>[] INLINE = {Knife.BOLD, Knife.ITALIC, Knife.UNDERLINE, Knife.STRIKE};
+    private static final int[] FLAGS = {
+            Spanned.SPAN_INCLUSIVE_INCLUSIVE,
+            Spanned.SPAN_INCLUSIVE_EXCLUSIVE,
+            Spanned.SPAN_EXCLUSIVE_INCLUSIVE,
+            Spanned.SPAN_EXCLUSIVE_EXCLUSIVE};
+
+    private final KnifeStyle style = new KnifeStyle.Builder().build();
+
+    @Test
+    public void escapesLinkAttribute() {
+        String url = "https://example.com/?q=\"x\" onclick=\"alert(1)\"&a=<b>";
+        SpannableStringBuilder text = new SpannableStringBuilder("link");
+        text.setSpan(style.createSpan(Knife.URL, url), 0, 4, Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+
+        String html = KnifeParser.toHtml(text, 0);
+        assertTrue(html, html.contains("<a href=\"https://example.com/?q=&quot;x&quot; "
+                + "onclick=&quot;alert(1)&quot;&amp;a=&lt;b&gt;\">link</a>"));
+
+        Spannable parsed = KnifeParser.fromHtml(html, style, false);
+        URLSpan[] links = parsed.getSpans(0, parsed.length(), URLSpan.class);
+        assertEquals(1, links.length);
+        assertEquals(url, links[0].getURL());
+        assertEquals("link", parsed.toString().trim());
+    }
+
+    // Only an editor needs the indexed copy, and it adopts it instead of copying it again
+    @Test
+    public void copiesIntoKnifeEditableForEditorsOnly() {
+        String html = "<b>bold</b> and <a href=\"https://example.com\">link</a>";
+        Spannable headless = KnifeParser.fromHtml(html, style, false);
+        Spannable editor = KnifeParser.fromHtml(html, style, true);
+        assertFalse(headless instanceof KnifeEditable);
+        assertTrue(editor instanceof KnifeEditable);
+        assertEquals(KnifeParser.toHtml(headless, 0), KnifeParser.toHtml(editor, 0));
+        assertFalse(KnifeDocument.fromHtml(html, style).getText() instanceof KnifeEditable);
+    }
+
+    // Overlapping and nested spans only ever need a tag opened again where an inner one outlives
+    // an outer one, never closed and opened again in place
+    @Test
+    public void minimizedInlineTagsParseBack() {
+        String[] reopened = {"</b><b>", "</i><i>", "</u><u>", "</del><del>"};
+        for (int seed = 0; seed < 300; seed++) {
+            Random random = new Random(seed);
+            SpannableStringBuilder text = new SpannableStringBuilder("abcdefghijklmnopqrstuvwxyz");
+            for (int i = 0; i < 8; i++) {
+                int start = random.nextInt(text.length());
+                int end = start + random.nextInt(text.length() - start + 1);
+                text.setSpan(style.createSpan(INLINE[random.nextInt(INLINE.length)], null), start, end,
+                        FLAGS[random.nextInt(FLAGS.length)]);
+            }
+            // Links can't nest
+            int linkStart = random.nextInt(text.length() / 2);
+            int linkEnd = linkStart + random.nextInt(6);
+            text.setSpan(style.createSpan(Knife.URL, "https://example.com/1"), linkStart, linkEnd,
+                    Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+            linkStart = Math.max(linkEnd, text.length() / 2 + random.nextInt(text.length() / 2));
+            linkEnd = Math.min(text.length(), linkStart + random.nextInt(6));
+            text.setSpan(style.createSpan(Knife.URL, "https://example.com/2"), linkStart, linkEnd,
+                    Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+
+            String html = KnifeParser.toHtml(text, 0);
+            for (String tags : reopened) {
+                assertFalse(html, html.contains(tags));
+            }
+            Spannable parsed = KnifeParser.fromHtml(html, style, false);
+            assertEquals(html, text.toString(), parsed.toString());
+            assertEquals(html, formats(text), formats(parsed));
+        }
+    }
+
+    // A list is only closed once the next line turns out not to continue it, and the line break
+    // after a list or quote is dropped, the block ends the line already
+    @Test
+    public void streamsListQuoteAndBreakBoundaries() throws IOException {
+        assertStreamed("<ul><li>one</li><li>two</li></ul>", "* one", "* two");
+        assertStreamed("<ul><li>one</li><li>two</li></ul>after", "* one", "* two", "after");
+        assertStreamed("<ul><li>one</li></ul><ul><li>two</li></ul>", "* one", "", "* two");
+        assertStreamed("<ul><li>one</li></ul>", "* one", "");
+        assertStreamed("<blockquote>quote</blockquote>after", "> quote", "after");
+        assertStreamed("<blockquote>one</blockquote><blockquote>two</blockquote>", "> one", "> two");
+        assertStreamed("<blockquote>quote</blockquote>", "> quote", "");
+        assertStreamed("<blockquote>quote</blockquote>after", "> quote", "", "after");
+        assertStreamed("<blockquote>quote</blockquote><br>after", "> quote", "", "", "after");
+        assertStreamed("before<br><ul><li>one</li></ul><blockquote>quote</blockquote>after",
+                "before", "* one", "> quote", "after");
+        assertStreamed("<ul><li><blockquote>both</blockquote></li></ul>after", "* > both", "after");
+        assertStreamed("a<br>b<br>", "a", "b", "");
+        assertStreamed("a<br><br><br>b", "a", "", "", "b");
+    }
+
+    @Test
+    public void streamsSameHtmlIntoAnyOutput() throws IOException {
+        String[] lines = {"* item", "> quote", "* > both", "plain", "", "x < y & z", "* é😀"};
+        for (int seed = 0; seed < 200; seed++) {
+            Random random = new Random(seed);
+            String[] document = new String[1 + random.nextInt(12)];
+            for (int i = 0; i < document.length; i++) {
+                document[i] = lines[random.nextInt(lines.length)];
+            }
+            SpannableStringBuilder text = document(document);
+            for (int i = 0; i < 3; i++) {
+                int start = random.nextInt(text.length() + 1);
+                int end = start + random.nextInt(text.length() - start + 1);
+                text.setSpan(style.createSpan(INLINE[random.nextInt(INLINE.length)], null), start, end,
+                        Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+            }
+
+            for (int option : new int[] {0, Knife.TO_HTML_RAW_UNICODE}) {
+                String html = KnifeParser.toHtml(text, option);
+                assertEquals(html, stream(text, option, true));
+                assertEquals(html, stream(text, option, false));
+            }
+        }
+    }
+
+    // Whatever the converter reads, the Knife spans made in one pass format the same characters and
+    // lines as its own spans did when they were switched to Knife spans afterwards
+    @Test
+    public void importMatchesConverterSpans() {
+        List<String> sources = new ArrayList<>(Arrays.asList(
+                "<strong>strong</strong> <em>em</em> <b><i>both</i></b> <u>u</u>",
+                "<s>s</s> <strike>strike</strike> <del>del</del> <b>a<del>b</del>c</b>",
+                "<a href=\"https://example.com/?a=1&amp;b=2\">link</a> <a href=\"x\"><b>bold</b> link</a>",
+                "<ul><li>one</li><li><b>two</b></li></ul>after<br><br>end",
+                "<blockquote>quote<br>two lines</blockquote><ul><li>item</li></ul>",
+                "<ul><li><blockquote>both</blockquote></li></ul><p>para</p>text",
+                "<b>bold<br>across</b> lines &lt;&amp;&gt; &#233; &#128512;"));
+        Random random = new Random(1);
+        String[] lines = {"* item", "> quote", "* > both", "plain", ""};
+        for (int i = 0; i < 50; i++) {
+            String[] document = new String[1 + random.nextInt(8)];
+            for (int j = 0; j < document.length; j++) {
+                document[j] = lines[random.nextInt(lines.length)];
+            }
+            SpannableStringBuilder text = document(document);
+            for (int j = 0; j < 4; j++) {
+                int start = random.nextInt(text.length() + 1);
+                int end = start + random.nextInt(text.length() - start + 1);
+                Class<?> type = j == 0 ? Knife.URL : INLINE[random.nextInt(INLINE.length)];
+                text.setSpan(style.createSpan(type, type == Knife.URL ? "https://example.com" : null),
+                        start, end, Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+            }
+            sources.add(KnifeParser.toHtml(text, 0));
+        }
+
+        for (String html : sources) {
+            Spanned converted = Html.fromHtml(html, null, new ConverterTagHandler());
+            String expected = formats(converted) + paragraphs(converted);
+            for (boolean forEditor : new boolean[] {false, true}) {
+                Spannable imported = KnifeParser.fromHtml(html, style, forEditor);
+                assertEquals(html, converted.toString(), imported.toString());
+                assertEquals(html, expected, formats(imported) + paragraphs(imported));
+            }
+        }
+    }
+
+    private void assertStreamed(String expected, String... lines) throws IOException {
+        SpannableStringBuilder text = document(lines);
+        assertEquals(expected, KnifeParser.toHtml(text, 0));
+        assertEquals(expected, stream(text, 0, true));
+        assertEquals(expected, stream(text, 0, false));
+    }
+
+    // Through a Writer with a buffer smaller than most tags, or an Appendable that is neither
+    // a Writer nor a StringBuilder
+    private static String stream(Spanned text, int option, boolean writer) throws IOException {
+        StringWriter out = new StringWriter();
+        if (writer) {
+            try (Writer buffered = new BufferedWriter(out, 3)) {
+                KnifeParser.toHtml(text, buffered, option);
+            }
+        } else {
+            KnifeParser.toHtml(text, new Appendable() {
+                @Override
+                public Appendable append(CharSequence csq) {
+                    out.append(csq);
+                    return this;
+                }
+
+                @Override
+                public Appendable append(CharSequence csq, int start, int end) {
+                    out.append(csq, start, end);
+                    return this;
+                }
+
+                @Override
+                public Appendable append(char c) {
+                    out.append(c);
+                    return this;
+                }
+            }, option);
+        }
+        return out.toString();
+    }
+
+    // One paragraph per line, "* " makes it a list item and "> " a quote
+    private SpannableStringBuilder document(String... lines) {
+        SpannableStringBuilder text = new SpannableStringBuilder();
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            boolean bullet = false;
+            boolean quote = false;
+            while (line.startsWith("* ") || line.startsWith("> ")) {
+                bullet |= line.startsWith("* ");
+                quote |= line.startsWith("> ");
+                line = line.substring(2);
+            }
+
+            int start = text.length();
+            text.append(line);
+            if (bullet && !line.isEmpty()) {
+                text.setSpan(style.createSpan(Knife.BULLET, null), start, text.length(),
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+            if (quote && !line.isEmpty()) {
+                text.setSpan(style.createSpan(Knife.QUOTE, null), start, text.length(),
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+            if (i + 1 < lines.length) {
+                text.append('\n');
+            }
+        }
+        return text;
+    }
+
+    // The inline formats of every character, links with their URL, read from Knife spans or from
+    // the converter's own
+    private static String formats(Spanned text) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            Set<String> formats = new TreeSet<>();
+            for (CharacterStyle span : text.getSpans(i, i + 1, CharacterStyle.class)) {
+                if (text.getSpanStart(span) > i || text.getSpanEnd(span) <= i) continue;
+                if (span instanceof StyleSpan) {
+                    int textStyle = ((StyleSpan) span).getStyle();
+                    if ((textStyle & Typeface.BOLD) != 0) formats.add("bold");
+                    if ((textStyle & Typeface.ITALIC) != 0) formats.add("italic");
+                } else if (span instanceof UnderlineSpan) {
+                    formats.add("underline");
+                } else if (span instanceof StrikethroughSpan) {
+                    formats.add("strike");
+                } else if (span instanceof URLSpan) {
+                    formats.add("link " + ((URLSpan) span).getURL());
+                }
+            }
+            out.append(i).append(": ").append(formats).append('\n');
+        }
+        return out.toString();
+    }
+
+    // The paragraph formats of every line that isn't empty
+    private static String paragraphs(Spanned text) {
+        StringBuilder out = new StringBuilder();
+        for (int start = 0; start < text.length(); ) {
+            int end = KnifeLineIndex.findLineEnd(text, start);
+            if (start != end) {
+                out.append(text.subSequence(start, end)).append(':');
+                if (hasParagraph(text, BulletSpan.class, start, end)) out.append(" bullet");
+                if (hasParagraph(text, QuoteSpan.class, start, end)) out.append(" quote");
+                out.append('\n');
+            }
+            start = end + 1;
+        }
+        return out.toString();
+    }
+
+    private static boolean hasParagraph(Spanned text, Class<?> type, int start, int end) {
+        for (Object span : text.getSpans(start, end, type)) {
+            if (text.getSpanStart(span) <= end && text.getSpanEnd(span) > start) return true;
+        }
+        return false;
+    }
+
+    // The tag handler from before Knife spans were made while parsing: framework spans for what
+    // the converter leaves to it
+    private static final class ConverterTagHandler implements Html.TagHandler {
+        @Override
+        public void handleTag(boolean opening, String tag, Editable output, XMLReader xmlReader) {
+            boolean li = tag.equalsIgnoreCase("li");
+            boolean strike = tag.equalsIgnoreCase("s") || tag.equalsIgnoreCase("strike")
+                    || tag.equalsIgnoreCase("del");
+            if (!li && !strike) return;
+
+            if (li && output.length() > 0 && output.charAt(output.length() - 1) != '\n') {
+                output.append("\n");
+            }
+            if (opening) {
+                Object mark = li ? new BulletSpan() : new StrikethroughSpan();
+                output.setSpan(mark, output.length(), output.length(), Spanned.SPAN_MARK_MARK);
+                return;
+            }
+
+            Class<?> kind = li ? BulletSpan.class : StrikethroughSpan.class;
+            Object[] marks = output.getSpans(0, output.length(), kind);
+            for (int i = marks.length - 1; i >= 0; i--) {
+                if (output.getSpanFlags(marks[i]) == Spanned.SPAN_MARK_MARK) {
+                    int start = output.getSpanStart(marks[i]);
+                    output.removeSpan(marks[i]);
+                    if (start != output.length()) {
+                        output.setSpan(li ? new BulletSpan() : new StrikethroughSpan(), start,
+                                output.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package io.github.mthli.knife;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Looper;
+import android.widget.EditText;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class KnifeTest {
+
+    @Test
+    public void deliversAsyncLoadFailureOnMainThread() {
+        EditText editText = new EditText(RuntimeEnvironment.getApplication());
+        Knife knife = new Knife(editText);
+        knife.setHtml("kept");
+        RuntimeException failure = new IllegalArgumentException("bad document");
+        List<RuntimeException> failures = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+
+        knife.loadAsync(() -> {
+            throw failure;
+        }, command -> new Thread(command).start(), new Knife.OnHtmlLoadedListener() {
+            @Override
+            public void onHtmlLoaded() {
+                throw new AssertionError("loaded");
+            }
+
+            @Override
+            public void onHtmlLoadFailed(RuntimeException e) {
+                failures.add(e);
+                threads.add(Thread.currentThread());
+            }
+        });
+        for (int i = 0; i < 200 && failures.isEmpty(); i++) {
+            sleep();
+            idle();
+        }
+
+        assertEquals(1, failures.size());
+        assertSame(failure, failures.get(0));
+        assertSame(Looper.getMainLooper().getThread(), threads.get(0));
+        assertEquals("kept", editText.getText().toString());
+    }
+
+    @Test
+    public void rethrowsAsyncLoadFailureWithoutListener() {
+        Knife knife = new Knife(new EditText(RuntimeEnvironment.getApplication()));
+        RuntimeException failure = new IllegalArgumentException("bad document");
+        knife.loadAsync(() -> {
+            throw failure;
+        }, Runnable::run, null);
+
+        assertSame(failure, assertThrows(IllegalArgumentException.class, KnifeTest::idle));
+    }
+
+    @Test
+    public void dropsFailureOfReplacedLoad() {
+        EditText editText = new EditText(RuntimeEnvironment.getApplication());
+        Knife knife = new Knife(editText);
+        knife.loadAsync(() -> {
+            throw new IllegalArgumentException("bad document");
+        }, Runnable::run, null);
+        knife.setHtmlAsync("newer", Runnable::run, null);
+
+        idle();
+        assertEquals("newer", editText.getText().toString());
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void idle() {
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofSeconds(1));
+    }
+
+}